@@ -0,0 +1,36 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+
+// Parses one request head per call the way both engines do, from a direct read buffer.
+// Lives in the default package next to HttpParser; the JMH classes reach it through Callable.
+public class HeaderParseFixture implements Callable<Object> {
+    private static final String GET = "GET /photos/cat.png HTTP/1.1\r\n" +
+            "Host: localhost:40000\r\n" +
+            "User-Agent: curl/8.5.0\r\n" +
+            "Accept: */*\r\n" +
+            "Content-Type: image/png\r\n" +
+            "Range: bytes=0-1023\r\n\r\n";
+    private static final String POST = "POST /photos/cat.png HTTP/1.1\r\n" +
+            "Host: localhost:40000\r\n" +
+            "User-Agent: curl/8.5.0\r\n" +
+            "Accept: */*\r\n" +
+            "Content-Type: image/png\r\n" +
+            "Content-Length: 204800\r\n" +
+            "Expect: 100-continue\r\n\r\n";
+
+    private final byte[] head;
+    private final ByteBuffer in = ByteBuffer.allocateDirect(16 * 1024);
+    private final HttpParser parser = new HttpParser();
+
+    public HeaderParseFixture(String method) {
+        head = (method.equals("POST") ? POST : GET).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Object call() throws Exception {
+        in.clear();
+        in.put(head);
+        return parser.parse(in);
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Starts UDPServer and TCPServer inside the benchmark JVM, once per fork, and
+// waits until the front end accepts connections. The node's segments and the front
+// end's partial uploads go into a temp directory, which close() deletes.
+public class LoopbackServers implements Runnable, AutoCloseable {
+    private static boolean started = false;
+    private static Path dir;
+
+    @Override
+    public void run() {
+        synchronized (LoopbackServers.class) {
+            if (started)
+                return;
+            started = true;
+            try {
+                dir = Files.createTempDirectory("loopback-");
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        System.setProperty("http.uploadDir", dir.resolve("uploads").toString());
+        String[] udpArgs = {String.valueOf(StorageCluster.DEFAULT_PORT), dir.resolve("node").toString()};
+        Thread udp = new Thread(() -> UDPServer.main(udpArgs), "udp-server");
+        Thread tcp = new Thread(() -> TCPServer.main(new String[] {"127.0.0.1"}), "tcp-server");
+        udp.setDaemon(true);
+        tcp.setDaemon(true);
+        udp.start();
+        tcp.start();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress("127.0.0.1", 40000), 200);
+                return;
+            }
+            catch (IOException e) {
+                try {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        throw new IllegalStateException("TCPServer did not come up on port 40000");
+    }
+
+    // The servers run until the fork exits; only what they stored goes now
+    @Override
+    public void close() throws IOException {
+        synchronized (LoopbackServers.class) {
+            if (dir == null)
+                return;
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                    Files.deleteIfExists(file);
+            }
+            dir = null;
+        }
+    }
+}
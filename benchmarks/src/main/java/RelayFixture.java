@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+// Runs one side of the image relay against an in-memory peer, so the benchmark sees
+// the framing, ACK and reassembly work without the network.
+//   "send":    ReliableSender over a peer that ACKs every chunk as it is sent
+//   "receive": ReliableReceiver fed every chunk of the file, in order or shuffled
+public class RelayFixture implements Callable<Object>, AutoCloseable {
+    private final String side;
+    private final int chunkSize;
+    private final int numPackets;
+    private final Path file;
+    private final FileChannel channel;
+    private final List<ByteBuffer> frames = new ArrayList<>();
+
+    public RelayFixture(String side, int fileSize, int chunkSize, boolean shuffled) throws IOException {
+        this.side = side;
+        this.chunkSize = chunkSize;
+        this.numPackets = (int) Math.ceil(fileSize / (double) chunkSize);
+        file = Files.createTempFile("relay-bench-", ".bin");
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+
+        byte[] data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        if (side.equals("send")) {
+            channel.write(ByteBuffer.wrap(data), 0);
+        }
+        else {
+            for (int seq = 1; seq <= numPackets; seq++) {
+                int off = (seq - 1) * chunkSize;
+                int len = Math.min(chunkSize, fileSize - off);
+                ByteBuffer frame = ByteBuffer.allocateDirect(RelayChannel.HEADER_BYTES + ReliableSender.SEQ_BYTES + len);
+                frame.put(RelayChannel.DATA).putInt(0).putInt(seq).put(data, off, len).flip();
+                frames.add(frame);
+            }
+            if (shuffled)
+                Collections.shuffle(frames, new Random(7));
+        }
+    }
+
+    @Override
+    public Object call() throws Exception {
+        if (side.equals("send"))
+            return new ReliableSender(new AckingPeer(), channel, chunkSize).send();
+
+        ReliableReceiver receiver = new ReliableReceiver(new ReplayPeer());
+        receiver.receive(numPackets, chunkSize, channel);
+        return receiver;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Acknowledges each DATA frame the moment it is sent
+    private static class AckingPeer extends RelayChannel {
+        private final ByteBuffer ack = ByteBuffer.allocateDirect(HEADER_BYTES + ReliableSender.ACK_BYTES);
+        private int highest = 0;
+
+        AckingPeer() {
+            super(0);
+        }
+
+        @Override
+        void send(ByteBuffer frame) {
+            if (type(frame) == DATA)
+                highest = Math.max(highest, frame.getInt(HEADER_BYTES));
+        }
+
+        @Override
+        ByteBuffer receive(long timeoutMs) {
+            startFrame(ack, ACK).putInt(highest).putInt(highest).putLong(0);
+            ack.flip();
+            return ack.position(HEADER_BYTES);
+        }
+    }
+
+    // Hands out the prepared frames and drops the receiver's ACKs
+    private class ReplayPeer extends RelayChannel {
+        private int next = 0;
+
+        ReplayPeer() {
+            super(0);
+        }
+
+        @Override
+        void send(ByteBuffer frame) { }
+
+        @Override
+        ByteBuffer receive(long timeoutMs) {
+            if (next == frames.size())
+                return null;
+            return frames.get(next++).duplicate().position(HEADER_BYTES);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+
+// The server classes live in the default package, which JMH benchmarks may not use
+// and named packages cannot import. Each benchmark therefore drives a small fixture
+// compiled into the default package and seen from here only as a JDK interface.
+final class Fixtures {
+    private Fixtures() { }
+
+    static <T> T create(Class<T> as, String className, Object... args) {
+        try {
+            for (Constructor<?> c : Class.forName(className).getConstructors()) {
+                if (c.getParameterCount() == args.length)
+                    return as.cast(c.newInstance(args));
+            }
+            throw new IllegalArgumentException("No " + args.length + "-argument constructor on " + className);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + className, e);
+        }
+    }
+
+    // The server still prints a line for every image POST and for errors, and request
+    // heads too with -Dlog.level=debug. Send that to a null stream so the fork's output
+    // stays readable.
+    static void silenceStdout() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+}
@@ -0,0 +1,31 @@
+package benchmarks;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// HttpParser.parse on a typical image GET and POST head, as both engines call it
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderParseBenchmark {
+    @Param({"GET", "POST"})
+    public String method;
+
+    private Callable<?> parse;
+
+    @Setup
+    public void setup() {
+        Fixtures.silenceStdout();
+        parse = Fixtures.create(Callable.class, "HeaderParseFixture", method);
+    }
+
+    @Benchmark
+    public Object parse() throws Exception {
+        return parse.call();
+    }
+}
@@ -0,0 +1,353 @@
+package benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+
+// Drives a running TCPServer over persistent HTTP/1.1 connections with a mix of
+// text and image GETs and POSTs, and reports throughput and latency percentiles.
+//
+//   java -cp benchmarks/target/benchmarks.jar [-Dload.*=...] benchmarks.LoadGenerator
+//
+// Open loop (the default) issues requests on a fixed schedule of load.rate per second
+// and measures each one from the moment it was due, so time spent queued behind a
+// slow server counts against it rather than being silently skipped (coordinated
+// omission). Closed loop keeps load.connections requests in flight back to back and,
+// when load.rate is set, back-fills the samples a stalled connection did not take.
+public class LoadGenerator {
+    private static final String HOST = System.getProperty("load.host", "127.0.0.1");
+    private static final int PORT = Integer.getInteger("load.port", 40000);
+    private static final String MODE = System.getProperty("load.mode", "open");
+    // Requests per second: the schedule in open loop, the expected pace in closed loop (0 = none)
+    private static final int RATE = Integer.getInteger("load.rate", 200);
+    private static final int CONNECTIONS = Integer.getInteger("load.connections", 16);
+    private static final int SECONDS = Integer.getInteger("load.seconds", 30);
+    private static final int WARMUP_SECONDS = Integer.getInteger("load.warmupSeconds", 5);
+    private static final int SIZE = Integer.getInteger("load.size", 64 * 1024);
+    // Distinct files per kind, so GETs spread over more than one name
+    private static final int FILES = Integer.getInteger("load.files", 16);
+    private static final String MIX = System.getProperty("load.mix", "get-text=40,get-image=30,post-text=20,post-image=10");
+    // Optional file for the full percentile distribution of all requests (HdrHistogram .hgrm)
+    private static final String HGRM = System.getProperty("load.hgrm");
+
+    private enum Op {
+        GET_TEXT("get-text", "GET", "text/plain", ".txt"),
+        GET_IMAGE("get-image", "GET", "image/png", ".png"),
+        POST_TEXT("post-text", "POST", "text/plain", ".txt"),
+        POST_IMAGE("post-image", "POST", "image/png", ".png");
+
+        final String label;
+        final String method;
+        final String ctype;
+        final String ext;
+
+        Op(String label, String method, String ctype, String ext) {
+            this.label = label;
+            this.method = method;
+            this.ctype = ctype;
+            this.ext = ext;
+        }
+    }
+
+    private final Op[] ops = Op.values();
+    private final int[] weights = new int[ops.length];
+    private int totalWeight = 0;
+    private final byte[] body = new byte[SIZE];
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator().run();
+    }
+
+    private LoadGenerator() {
+        for (String part : MIX.split(",")) {
+            String[] kv = part.trim().split("=");
+            boolean known = false;
+            for (int i = 0; i < ops.length; i++) {
+                if (ops[i].label.equals(kv[0].trim())) {
+                    weights[i] = Integer.parseInt(kv[1].trim());
+                    totalWeight += weights[i];
+                    known = true;
+                }
+            }
+            if (!known)
+                throw new IllegalArgumentException("Unknown operation in load.mix: " + kv[0]);
+        }
+        if (totalWeight <= 0)
+            throw new IllegalArgumentException("load.mix has no weight");
+        new Random(SIZE).nextBytes(body);
+    }
+
+    private void run() throws Exception {
+        seed();
+
+        long start = System.nanoTime() + 100_000_000;
+        long measureFrom = start + WARMUP_SECONDS * 1_000_000_000L;
+        long end = measureFrom + SECONDS * 1_000_000_000L;
+        AtomicLong ticket = new AtomicLong();
+
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < CONNECTIONS; i++)
+            workers.add(new Worker(start, measureFrom, end, ticket));
+        List<Thread> threads = new ArrayList<>();
+        for (Worker w : workers) {
+            Thread t = new Thread(w, "load-" + threads.size());
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        report(workers);
+    }
+
+    // POSTs every file the GETs will ask for
+    private void seed() throws IOException {
+        try (Client client = new Client()) {
+            for (int i = 0; i < FILES; i++) {
+                for (Op op : new Op[] {Op.POST_TEXT, Op.POST_IMAGE}) {
+                    int status = client.exchange(op, i);
+                    if (status != 201)
+                        throw new IOException("Seeding " + name(op, i) + " returned " + status);
+                }
+            }
+        }
+    }
+
+    private Op pick(ThreadLocalRandom rnd) {
+        int r = rnd.nextInt(totalWeight);
+        for (int i = 0; i < ops.length; i++) {
+            r -= weights[i];
+            if (r < 0)
+                return ops[i];
+        }
+        return ops[ops.length - 1];
+    }
+
+    private static String name(Op op, int file) {
+        return "load-" + file + op.ext;
+    }
+
+    private class Worker implements Runnable {
+        final long start;
+        final long measureFrom;
+        final long end;
+        final AtomicLong ticket;
+
+        // Response time: from when the request was due; service time: from when it was sent
+        final Histogram[] response = new Histogram[ops.length];
+        final Histogram service = new Histogram(3);
+        final long[] errors = new long[ops.length];
+
+        Worker(long start, long measureFrom, long end, AtomicLong ticket) {
+            this.start = start;
+            this.measureFrom = measureFrom;
+            this.end = end;
+            this.ticket = ticket;
+            for (int i = 0; i < ops.length; i++)
+                response[i] = new Histogram(3);
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            boolean open = MODE.equals("open");
+            long interval = RATE > 0 ? 1_000_000_000L / RATE : 0;
+            // In closed loop each connection is expected to complete one request per this many ns
+            long expected = RATE > 0 ? interval * CONNECTIONS : 0;
+            Client client = null;
+
+            while (true) {
+                long due;
+                if (open) {
+                    due = start + ticket.getAndIncrement() * interval;
+                    if (due >= end)
+                        break;
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0)
+                        LockSupport.parkNanos(wait);
+                }
+                else {
+                    due = Math.max(System.nanoTime(), start);
+                    if (due >= end)
+                        break;
+                }
+
+                Op op = pick(rnd);
+                long sent = System.nanoTime();
+                boolean ok;
+                try {
+                    // The server closes after its per-connection request limit
+                    if (client != null && client.closed) {
+                        client.closeQuietly();
+                        client = null;
+                    }
+                    if (client == null)
+                        client = new Client();
+                    int status = client.exchange(op, rnd.nextInt(FILES));
+                    ok = status / 100 == 2;
+                }
+                catch (IOException e) {
+                    ok = false;
+                    if (client != null)
+                        client.closeQuietly();
+                    client = null;
+                }
+                long done = System.nanoTime();
+
+                if (due < measureFrom)
+                    continue;
+                if (!ok)
+                    errors[op.ordinal()]++;
+                else if (!open && expected > 0)
+                    response[op.ordinal()].recordValueWithExpectedInterval(done - due, expected);
+                else
+                    response[op.ordinal()].recordValue(done - due);
+                service.recordValue(done - sent);
+            }
+            if (client != null)
+                client.closeQuietly();
+        }
+    }
+
+    private void report(List<Worker> workers) throws FileNotFoundException {
+        Histogram all = new Histogram(3);
+        Histogram service = new Histogram(3);
+        for (Worker w : workers)
+            service.add(w.service);
+
+        System.out.printf(Locale.ROOT, "%s loop, %s, %d connections, %d x %d bytes per kind, %ds measured after %ds warmup%n",
+                MODE, RATE > 0 ? RATE + " req/s" : "unpaced", CONNECTIONS, FILES, SIZE, SECONDS, WARMUP_SECONDS);
+        System.out.printf(Locale.ROOT, "%-12s %8s %7s %9s %9s %9s %9s %9s %9s%n",
+                "op", "count", "errors", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (int i = 0; i < ops.length; i++) {
+            Histogram h = new Histogram(3);
+            long errors = 0;
+            for (Worker w : workers) {
+                h.add(w.response[i]);
+                errors += w.errors[i];
+            }
+            if (h.getTotalCount() + errors == 0)
+                continue;
+            all.add(h);
+            row(ops[i].label, h, errors);
+        }
+
+        long errors = 0;
+        for (Worker w : workers) {
+            for (long e : w.errors)
+                errors += e;
+        }
+        row("all", all, errors);
+        if (MODE.equals("open"))
+            row("all service", service, errors);
+
+        if (HGRM != null) {
+            try (PrintStream out = new PrintStream(HGRM)) {
+                all.outputPercentileDistribution(out, 1_000_000.0);
+            }
+        }
+    }
+
+    private void row(String label, Histogram h, long errors) {
+        System.out.printf(Locale.ROOT, "%-12s %8d %7d %9.1f %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+                label, h.getTotalCount(), errors, h.getTotalCount() / (double) SECONDS,
+                ms(h.getValueAtPercentile(50)), ms(h.getValueAtPercentile(90)),
+                ms(h.getValueAtPercentile(99)), ms(h.getValueAtPercentile(99.9)), ms(h.getMaxValue()));
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    // One persistent connection speaking just enough HTTP/1.1 for TCPServer
+    private class Client implements AutoCloseable {
+        private final Socket socket = new Socket();
+        private final InputStream in;
+        private final OutputStream out;
+        boolean closed = false;
+
+        Client() throws IOException {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(HOST, PORT), 5000);
+            socket.setSoTimeout(30_000);
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            out = socket.getOutputStream();
+        }
+
+        // Sends one request and reads the whole response; returns the status code
+        int exchange(Op op, int file) throws IOException {
+            boolean post = op.method.equals("POST");
+            String head = op.method + " /" + name(op, file) + " HTTP/1.1\r\n" +
+                    "Host: " + HOST + ":" + PORT + "\r\n" +
+                    "Content-Type: " + op.ctype + "\r\n" +
+                    (post ? "Content-Length: " + body.length + "\r\n" : "") + "\r\n";
+            out.write(head.getBytes(StandardCharsets.US_ASCII));
+            if (post)
+                out.write(body);
+            out.flush();
+
+            String status = readLine();
+            if (!status.startsWith("HTTP/1.1 "))
+                throw new IOException("Bad status line: " + status);
+            long length = 0;
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                String lower = line.toLowerCase(Locale.ROOT);
+                if (lower.startsWith("content-length:"))
+                    length = Long.parseLong(line.substring(15).trim());
+                else if (lower.startsWith("connection:") && lower.contains("close"))
+                    closed = true;
+            }
+            while (length > 0) {
+                long skipped = in.skip(length);
+                if (skipped <= 0) {
+                    if (in.read() == -1)
+                        throw new EOFException("Response body cut short");
+                    skipped = 1;
+                }
+                length -= skipped;
+            }
+            return Integer.parseInt(status.substring(9, 12));
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c == -1)
+                    throw new EOFException("Connection closed mid-response");
+                if (c != '\r')
+                    sb.append((char) c);
+            }
+            return sb.toString();
+        }
+
+        void closeQuietly() {
+            try {
+                socket.close();
+            }
+            catch (IOException ignored) { }
+        }
+
+        @Override
+        public void close() {
+            closeQuietly();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package benchmarks;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// End to end over loopback: TCPServer and UDPServer run inside the fork and a JDK
+// HttpClient drives GETs and POSTs at them. Text files are served from disk by the
+// front end, images go through the UDP relay. SampleTime reports the latency
+// percentiles, Throughput the requests per second.
+@BenchmarkMode({Mode.SampleTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+// The servers' pools are not daemon threads; do not let JMH wait 30s for them at exit
+@Fork(value = 1, jvmArgsAppend = {"-Dcache.maxBytes=0", "-Djmh.shutdownTimeout=1"})
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    public int fileSize;
+
+    @Param({"text/plain", "image/png"})
+    public String contentType;
+
+    private Runnable servers;
+    private HttpClient client;
+    private URI uri;
+    private byte[] body;
+    private String filename;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Fixtures.silenceStdout();
+        servers = Fixtures.create(Runnable.class, "LoopbackServers");
+        servers.run();
+
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        filename = "jmh-" + fileSize + (contentType.startsWith("image") ? ".png" : ".txt");
+        uri = URI.create("http://127.0.0.1:40000/" + filename);
+        body = new byte[fileSize];
+        new Random(fileSize).nextBytes(body);
+
+        if (post() != 201)
+            throw new IllegalStateException("Seeding " + filename + " failed");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(Paths.get(filename));
+        ((AutoCloseable) servers).close();
+    }
+
+    @Benchmark
+    public int get() throws Exception {
+        HttpRequest req = HttpRequest.newBuilder(uri).header("Content-Type", contentType).GET().build();
+        HttpResponse<byte[]> resp = client.send(req, HttpResponse.BodyHandlers.ofByteArray());
+        if (resp.statusCode() != 200 || resp.body().length != fileSize)
+            throw new IllegalStateException("GET " + filename + " returned " + resp.statusCode());
+        return resp.body().length;
+    }
+
+    @Benchmark
+    public int post() throws Exception {
+        HttpRequest req = HttpRequest.newBuilder(uri).header("Content-Type", contentType)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+        return client.send(req, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+}
@@ -0,0 +1,202 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Sits between TCPServer and a UDP storage node and drops a share of the datagrams
+// in both directions, and holds back another share to go out after the next one, to
+// see how the relay copes with a lossy link that reorders.
+//
+//   java -cp benchmarks/target/benchmarks.jar [-Dproxy.*=...] benchmarks.LossProxy
+//
+// Point TCPServer at the proxy's port instead of the node's. Every client address
+// gets its own upstream socket, so the node sees one peer per relay session just as
+// it would without the proxy.
+public class LossProxy {
+    private static final int PORT = Integer.getInteger("proxy.port", 41100);
+    private static final String TARGET = System.getProperty("proxy.target", "127.0.0.1:41000");
+    // Share of datagrams dropped, each way
+    private static final double LOSS = Double.parseDouble(System.getProperty("proxy.loss", "0.02"));
+    // Share of datagrams passed on only after the one that follows them
+    private static final double REORDER = Double.parseDouble(System.getProperty("proxy.reorder", "0"));
+    // Upstream sockets of clients silent this long are closed
+    private static final long IDLE_MS = Long.getLong("proxy.idleMs", 60_000);
+    // Socket buffers large enough that the proxy itself loses nothing it was not told to
+    private static final int BUFFER_BYTES = Integer.getInteger("proxy.bufferBytes", 8 << 20);
+
+    private final InetSocketAddress target;
+    private final double loss;
+    private final double reorder;
+    private final Selector selector = Selector.open();
+    private final DatagramChannel listener = DatagramChannel.open();
+    private final Map<SocketAddress, Peer> peers = new HashMap<>();
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(65536);
+    // The datagram held back, for heldPeer, going upstream or back to the client
+    private final ByteBuffer held = ByteBuffer.allocateDirect(65536);
+    private Peer heldPeer;
+    private boolean heldUpstream;
+    private volatile boolean running = true;
+    volatile long forwarded;
+    volatile long dropped;
+    volatile long reordered;
+
+    private static final class Peer {
+        final SocketAddress client;
+        final DatagramChannel upstream;
+        long lastSeen;
+
+        Peer(SocketAddress client, DatagramChannel upstream) {
+            this.client = client;
+            this.upstream = upstream;
+        }
+    }
+
+    // Port 0 takes any free one; see port()
+    LossProxy(int port, InetSocketAddress target, double loss, double reorder) throws IOException {
+        this.target = target;
+        this.loss = loss;
+        this.reorder = reorder;
+        listener.bind(new InetSocketAddress(port));
+        listener.setOption(StandardSocketOptions.SO_RCVBUF, BUFFER_BYTES);
+        listener.setOption(StandardSocketOptions.SO_SNDBUF, BUFFER_BYTES);
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_READ);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int colon = TARGET.lastIndexOf(':');
+        InetSocketAddress target = new InetSocketAddress(TARGET.substring(0, colon),
+                Integer.parseInt(TARGET.substring(colon + 1)));
+        System.out.println("Relaying :" + PORT + " to " + target + ", dropping " + LOSS * 100 + "% and reordering "
+                + REORDER * 100 + "% each way");
+        new LossProxy(PORT, target, LOSS, REORDER).run();
+    }
+
+    int port() throws IOException {
+        return ((InetSocketAddress) listener.getLocalAddress()).getPort();
+    }
+
+    // Stops run() and closes every socket
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    void run() throws IOException {
+        try {
+            relay();
+        }
+        finally {
+            for (Peer peer : peers.values())
+                peer.upstream.close();
+            listener.close();
+            selector.close();
+        }
+    }
+
+    private void relay() throws IOException {
+        long lastSweep = System.currentTimeMillis();
+        while (running) {
+            // A datagram held back at the end of a burst goes out on its own, a little late
+            if (selector.select(heldPeer != null ? 5 : 1000) == 0 && heldPeer != null) {
+                try {
+                    sendHeld();
+                }
+                catch (PortUnreachableException ignored) { }
+            }
+            long now = System.currentTimeMillis();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    drain(key, now);
+                }
+                catch (PortUnreachableException e) {
+                    // The node is not up (yet); the relay retries on its own
+                }
+            }
+
+            if (now - lastSweep >= IDLE_MS) {
+                Iterator<Peer> it = peers.values().iterator();
+                while (it.hasNext()) {
+                    Peer peer = it.next();
+                    if (now - peer.lastSeen >= IDLE_MS) {
+                        peer.upstream.close();
+                        it.remove();
+                    }
+                }
+                System.out.println(forwarded + " forwarded, " + dropped + " dropped, " + reordered + " reordered, "
+                        + peers.size() + " peers");
+                lastSweep = now;
+            }
+        }
+    }
+
+    // Passes on (or drops) everything waiting on key's channel: client datagrams go
+    // out through the client's upstream socket, node datagrams back to the client
+    private void drain(SelectionKey key, long now) throws IOException {
+        SocketAddress from;
+        while ((from = ((DatagramChannel) key.channel()).receive(buf.clear())) != null) {
+            buf.flip();
+            Peer peer = (Peer) key.attachment();
+            if (peer == null) {
+                peer = peers.get(from);
+                if (peer == null) {
+                    DatagramChannel upstream = DatagramChannel.open()
+                            .setOption(StandardSocketOptions.SO_RCVBUF, BUFFER_BYTES)
+                            .setOption(StandardSocketOptions.SO_SNDBUF, BUFFER_BYTES)
+                            .connect(target);
+                    upstream.configureBlocking(false);
+                    peer = new Peer(from, upstream);
+                    upstream.register(selector, SelectionKey.OP_READ, peer);
+                    peers.put(from, peer);
+                }
+            }
+            peer.lastSeen = now;
+            double dice = ThreadLocalRandom.current().nextDouble();
+            if (dice < loss) {
+                dropped++;
+                continue;
+            }
+            if (dice < loss + reorder && heldPeer == null) {
+                held.clear();
+                held.put(buf).flip();
+                heldPeer = peer;
+                heldUpstream = key.channel() == listener;
+                continue;
+            }
+            forwarded++;
+            send(buf, peer, key.channel() == listener);
+            if (heldPeer != null) {
+                reordered++;
+                sendHeld();
+            }
+        }
+    }
+
+    private void sendHeld() throws IOException {
+        Peer peer = heldPeer;
+        heldPeer = null;
+        forwarded++;
+        send(held, peer, heldUpstream);
+    }
+
+    private void send(ByteBuffer datagram, Peer peer, boolean upstream) throws IOException {
+        if (upstream)
+            peer.upstream.write(datagram);
+        else
+            listener.send(datagram, peer.client);
+    }
+}
@@ -0,0 +1,73 @@
+package benchmarks;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// One full relay of a file through ReliableSender or ReliableReceiver with the peer
+// simulated in memory: chunk framing, window and ACK handling, and reassembly into
+// the target file.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelayBenchmark {
+    @State(Scope.Thread)
+    public static class Sender {
+        @Param({"1048576"})
+        public int fileSize;
+
+        // Ethernet, jumbo frames and a full loopback datagram
+        @Param({"1463", "8963", "65498"})
+        public int chunkSize;
+
+        Callable<?> relay;
+
+        @Setup
+        public void setup() {
+            relay = Fixtures.create(Callable.class, "RelayFixture", "send", fileSize, chunkSize, false);
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            ((AutoCloseable) relay).close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Receiver {
+        @Param({"1048576"})
+        public int fileSize;
+
+        @Param({"1463", "8963", "65498"})
+        public int chunkSize;
+
+        // Shuffled chunks all arrive out of order
+        @Param({"false", "true"})
+        public boolean shuffled;
+
+        Callable<?> relay;
+
+        @Setup
+        public void setup() {
+            relay = Fixtures.create(Callable.class, "RelayFixture", "receive", fileSize, chunkSize, shuffled);
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            ((AutoCloseable) relay).close();
+        }
+    }
+
+    @Benchmark
+    public Object send(Sender s) throws Exception {
+        return s.relay.call();
+    }
+
+    @Benchmark
+    public Object receive(Receiver r) throws Exception {
+        return r.relay.call();
+    }
+}
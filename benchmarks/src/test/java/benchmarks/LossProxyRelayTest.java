@@ -0,0 +1,165 @@
+package benchmarks;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+// Images relayed to a UDPServer through a LossProxy that drops and reorders datagrams
+// both ways must come back byte for byte. TCPServer and the node run in JVMs of their
+// own, on free ports, in a temp directory deleted at the end.
+class LossProxyRelayTest {
+    private static final double LOSS = 0.05;
+    private static final double REORDER = 0.05;
+    private static final long WAIT_MS = 15_000;
+
+    private static Path dir;
+    private static LossProxy proxy;
+    private static Thread proxyThread;
+    private static final List<Process> servers = new ArrayList<>();
+    private static int port;
+    private static final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+    @BeforeAll
+    static void start() throws Exception {
+        dir = Files.createTempDirectory("lossy-relay-");
+        String classes = Paths.get(Class.forName("UDPServer").getProtectionDomain().getCodeSource().getLocation()
+                .toURI()).toString();
+        int nodePort;
+        try (DatagramSocket s = new DatagramSocket(0)) {
+            nodePort = s.getLocalPort();
+        }
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+
+        servers.add(java(classes, "node.log", "UDPServer", String.valueOf(nodePort), dir.resolve("node").toString()));
+        proxy = new LossProxy(0, new InetSocketAddress("127.0.0.1", nodePort), LOSS, REORDER);
+        proxyThread = new Thread(() -> {
+            try {
+                proxy.run();
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }, "loss-proxy");
+        proxyThread.start();
+        // Parity on, so lost chunks are both rebuilt and resent
+        servers.add(java(classes, "tcp.log", "-Dtcp.port=" + port, "-Dcache.maxBytes=0", "-Drelay.fec=8/2",
+                "-Dring.healthMs=200", "TCPServer", "127.0.0.1:" + proxy.port()));
+
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (true) {
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress("127.0.0.1", port), 200);
+                break;
+            }
+            catch (IOException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw new IllegalStateException("TCPServer did not come up on port " + port);
+                Thread.sleep(50);
+            }
+        }
+        // The node starts out marked up; wait for a ping through the proxy to agree
+        String up = "relay_node_up{node=\"127.0.0.1:" + proxy.port() + "\"} 1\n";
+        while (!metrics().contains(up)) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IllegalStateException("Node not seen up through the proxy");
+            Thread.sleep(50);
+        }
+    }
+
+    @AfterAll
+    static void stop() throws Exception {
+        for (Process p : servers)
+            p.destroyForcibly();
+        for (Process p : servers)
+            p.waitFor();
+        if (proxy != null) {
+            proxy.close();
+            proxyThread.join();
+        }
+        if (dir != null) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                    Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void imagesSurviveALossyReorderingLink() throws Exception {
+        // One stripe, and one big enough to go as several
+        for (int size : new int[] {300_000, 20_000_000}) {
+            byte[] image = new byte[size];
+            new Random(size).nextBytes(image);
+            String name = "lossy-" + size + ".png";
+            assertEquals(201, post(name, image));
+
+            HttpResponse<byte[]> response = get(name);
+            assertEquals(200, response.statusCode());
+            assertArrayEquals(image, response.body());
+        }
+        assertTrue(proxy.dropped > 0, "nothing was dropped");
+        assertTrue(proxy.reordered > 0, "nothing was reordered");
+    }
+
+    private static HttpResponse<byte[]> get(String name) throws Exception {
+        HttpRequest req = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/" + name))
+                .header("Content-Type", "image/png")
+                .timeout(Duration.ofSeconds(60))
+                .build();
+        return client.send(req, BodyHandlers.ofByteArray());
+    }
+
+    private static String metrics() throws Exception {
+        HttpRequest req = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/metrics"))
+                .timeout(Duration.ofSeconds(5))
+                .build();
+        return client.send(req, BodyHandlers.ofString()).body();
+    }
+
+    private static int post(String name, byte[] body) throws Exception {
+        HttpRequest req = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/" + name))
+                .header("Content-Type", "image/png")
+                .timeout(Duration.ofSeconds(60))
+                .POST(BodyPublishers.ofByteArray(body))
+                .build();
+        return client.send(req, BodyHandlers.discarding()).statusCode();
+    }
+
+    private static Process java(String classes, String log, String... args) throws IOException {
+        List<String> command = new ArrayList<>(List.of(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp", classes));
+        command.addAll(List.of(args));
+        return new ProcessBuilder(command)
+                .directory(dir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve(log).toFile())
+                .start();
+    }
+}
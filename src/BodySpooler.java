@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Streams a request body into a temp file next to its destination as the bytes
+// arrive, framed by Content-Length or chunked transfer encoding. Data is written
+// straight from the caller's read buffer, so memory use does not grow with the
+// size of the upload.
+class BodySpooler {
+    private static final int MAX_CHUNK_LINE = 1024;
+    // Hex digits in a chunk size; 15 always fit a long
+    private static final int MAX_SIZE_DIGITS = 15;
+
+    // Chunked decoder states
+    private static final int SIZE_LINE = 0;
+    private static final int DATA = 1;
+    private static final int DATA_END = 2;
+    private static final int TRAILER = 3;
+    private static final int DONE = 4;
+
+    private final Path temp;
+    private final FileChannel file;
+    private final boolean chunked;
+    private long remaining;
+    private int state;
+    private final StringBuilder line = new StringBuilder();
+
+    // A body framed in a way we cannot follow; answered with 400, as the connection
+    // cannot be trusted for another request either
+    static final class MalformedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedException(String message) {
+            super(message);
+        }
+    }
+
+    private BodySpooler(Path temp, boolean chunked, long contentLength) throws IOException {
+        this.temp = temp;
+        this.chunked = chunked;
+        this.file = FileChannel.open(temp, StandardOpenOption.WRITE);
+        remaining = chunked ? 0 : contentLength;
+        state = chunked ? SIZE_LINE : (contentLength == 0 ? DONE : DATA);
+    }
+
+    // Whether req carries a body we know how to frame, and so gets a spooler. One for
+    // a path we cannot create the temp file next to is never read.
+    static boolean expected(HttpRequest req) {
+        return !req.badPath && req.hasBody() && (req.chunked || req.contentLength >= 0);
+    }
+
+    // Returns null when the request carries no body we know how to frame
+    static BodySpooler forRequest(HttpRequest req) throws IOException {
+        if (!expected(req))
+            return null;
+
+        Path dir = Paths.get(req.filename).toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, ".upload-", ".tmp");
+        return new BodySpooler(temp, req.chunked, req.contentLength);
+    }
+
+    // Consumes body bytes from in, leaving anything past the end of the body
+    // (a pipelined request) unread. Returns true once the whole body has arrived.
+    boolean consume(ByteBuffer in) throws IOException {
+        while (in.hasRemaining() && state != DONE) {
+            if (state == DATA) {
+                int n = (int) Math.min(remaining, in.remaining());
+                ByteBuffer slice = in.duplicate();
+                slice.limit(slice.position() + n);
+                while (slice.hasRemaining())
+                    file.write(slice);
+                in.position(in.position() + n);
+                remaining -= n;
+                if (remaining == 0)
+                    state = chunked ? DATA_END : DONE;
+            }
+            else {
+                String l = readLine(in);
+                if (l == null)
+                    break;
+
+                if (state == SIZE_LINE) {
+                    int ext = l.indexOf(';');
+                    remaining = chunkSize((ext == -1 ? l : l.substring(0, ext)).trim());
+                    state = remaining == 0 ? TRAILER : DATA;
+                }
+                else if (state == DATA_END) {
+                    if (!l.isEmpty())
+                        throw new MalformedException("Missing CRLF after chunk");
+                    state = SIZE_LINE;
+                }
+                else if (l.isEmpty()) {
+                    state = DONE;
+                }
+            }
+        }
+        return state == DONE;
+    }
+
+    // The spooled body; the caller moves or deletes it
+    Path finish() throws IOException {
+        file.close();
+        return temp;
+    }
+
+    void abort() {
+        try {
+            file.close();
+            Files.deleteIfExists(temp);
+        }
+        catch (IOException e) { System.out.println(e.getMessage()); }
+    }
+
+    // Accumulates one CRLF-terminated line, which may span several reads
+    private String readLine(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            char c = (char) (in.get() & 0xff);
+            if (c == '\n') {
+                int len = line.length();
+                if (len > 0 && line.charAt(len - 1) == '\r')
+                    line.setLength(len - 1);
+                String l = line.toString();
+                line.setLength(0);
+                return l;
+            }
+            line.append(c);
+            if (line.length() > MAX_CHUNK_LINE)
+                throw new MalformedException("Chunk line too long");
+        }
+        return null;
+    }
+
+    // Hex digits only: Long.parseLong would also take a sign, and with it a size below zero
+    private static long chunkSize(String hex) throws MalformedException {
+        if (hex.isEmpty() || hex.length() > MAX_SIZE_DIGITS)
+            throw new MalformedException("Malformed chunk size: " + hex);
+        long size = 0;
+        for (int i = 0; i < hex.length(); i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit == -1)
+                throw new MalformedException("Malformed chunk size: " + hex);
+            size = size << 4 | digit;
+        }
+        return size;
+    }
+}
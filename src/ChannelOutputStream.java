@@ -0,0 +1,75 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+// Blocking OutputStream over a socket channel that may be in non-blocking mode.
+// When the socket buffer is full the writing thread parks on a private selector,
+// so request handlers can run on worker threads while the event loops keep the key.
+class ChannelOutputStream extends OutputStream {
+    private static final long WRITE_TIMEOUT_MS = 30_000;
+
+    private final SocketChannel channel;
+    private Selector selector;
+    private final Metrics metrics = Metrics.get();
+
+    ChannelOutputStream(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    // Sends what is left in src, which may be a direct buffer
+    void write(ByteBuffer src) throws IOException {
+        metrics.add("http_bytes_out_total", src.remaining());
+        while (src.hasRemaining()) {
+            if (channel.write(src) == 0)
+                awaitWritable();
+        }
+    }
+
+    // Send count bytes of file starting at position without copying them through the heap
+    void transferFrom(FileChannel file, long position, long count) throws IOException {
+        long end = position + count;
+        metrics.add("http_bytes_out_total", count);
+        while (position < end) {
+            long sent = file.transferTo(position, end - position, channel);
+            if (sent == 0) {
+                if (position >= file.size())
+                    throw new EOFException("File truncated while sending");
+                awaitWritable();
+            }
+            position += sent;
+        }
+    }
+
+    private void awaitWritable() throws IOException {
+        if (selector == null) {
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_WRITE);
+        }
+        if (selector.select(WRITE_TIMEOUT_MS) == 0)
+            throw new SocketTimeoutException("Write timed out");
+        selector.selectedKeys().clear();
+    }
+
+    // Only releases the private selector; the owner decides when the channel closes
+    @Override
+    public void close() throws IOException {
+        if (selector != null)
+            selector.close();
+    }
+}
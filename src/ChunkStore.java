@@ -0,0 +1,425 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+// Content-addressed storage behind a UDP node. Images are cut into blocks, each
+// stored once under its SHA-256 in append-only segment files, and an image is a
+// manifest of its blocks' hashes. A block another image (or an earlier upload of
+// the same one) already brought costs no disk, and no network either: the sender
+// lists its hashes first and only transfers the blocks the node is missing.
+//
+// Segment record: [hash 32 bytes][length int][data]. The hash -> location index and
+// every manifest are kept in memory, rebuilt from disk when the node starts, so a GET
+// finds where its blocks are without touching the disk. Reads are served from
+// read-only mappings of the segments: a chunk is copied straight from the page cache
+// into its datagram, and a GET costs the same to start whatever the image's size.
+//
+// A manifest is published only once the blocks it names are on disk: its rename
+// goes through a GroupCommit with the active segment, and a segment is fsynced when
+// the next one takes over from it. A node says SUCCESS only after that.
+//
+// Until its last stripe is in, an upload's block hashes so far are kept the same
+// way under uploads/, so a stripe retried after the node restarts still completes
+// the image the other stripes started. Uploads nobody finishes within UPLOAD_TTL_MS
+// are dropped; their blocks stay, for whatever sends them next.
+class ChunkStore {
+    static final int HASH_BYTES = 32;
+    static final int DEFAULT_BLOCK_BYTES = 64 * 1024;
+    // Largest block a sender may cut an image into
+    static final int MAX_BLOCK_BYTES = 4 << 20;
+
+    private static final int RECORD_HEADER = HASH_BYTES + 4;
+    // At most 2 GB, the most one mapping can cover
+    private static final long SEGMENT_BYTES = Math.min(Long.getLong("store.segmentBytes", 256L << 20),
+            Integer.MAX_VALUE);
+    private static final long UPLOAD_TTL_MS = Long.getLong("store.uploadTtlMs", 60 * 60 * 1000L);
+
+    private final Path segmentDir;
+    private final Path manifestDir;
+    private final Path uploadDir;
+    private final ConcurrentHashMap<ByteBuffer, Location> index = new ConcurrentHashMap<>();
+    // Segment n is segments.get(n); only the last one is appended to
+    private final List<FileChannel> segments = new CopyOnWriteArrayList<>();
+    // Read-only mapping of each segment; the active one's is redone when a read reaches past it
+    private final ConcurrentHashMap<Integer, MappedByteBuffer> maps = new ConcurrentHashMap<>();
+    // Every published image by name
+    private final ConcurrentHashMap<String, Manifest> manifests = new ConcurrentHashMap<>();
+    private long activeSize;
+    // Uploads whose stripes are still arriving, by filename and upload id
+    private final ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final GroupCommit commits = new GroupCommit("node");
+    private final Metrics metrics = Metrics.get();
+
+    private static final class Location {
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    static final class Manifest {
+        final long size;
+        final int blockBytes;
+        final byte[][] hashes;
+
+        Manifest(long size, int blockBytes, byte[][] hashes) {
+            this.size = size;
+            this.blockBytes = blockBytes;
+            this.hashes = hashes;
+        }
+    }
+
+    // The blocks of one image as its stripes store them; published as a manifest once all are in
+    final class Upload {
+        private final String key;
+        private final String name;
+        private final long size;
+        private final int blockBytes;
+        private final byte[][] hashes;
+        private final Path state;
+        // Held while the state is written, so a later snapshot never lands under an earlier one
+        private final Object persisting = new Object();
+        private int missing;
+        private boolean published = false;
+        private volatile long touched = System.currentTimeMillis();
+
+        private Upload(String key, String name, long size, int blockBytes) {
+            this.key = key;
+            this.name = name;
+            this.size = size;
+            this.blockBytes = blockBytes;
+            this.hashes = new byte[blocks(size, blockBytes)][];
+            this.missing = hashes.length;
+            this.state = uploadDir.resolve(hex(hash(ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8)))));
+        }
+
+        synchronized void set(int block, byte[] hash) {
+            if (hashes[block] == null)
+                missing--;
+            hashes[block] = hash;
+        }
+
+        // Called as each stripe finishes: the one that completes the image publishes it,
+        // the others make what is in so far durable before the stripe counts as stored
+        void finish() throws IOException {
+            touched = System.currentTimeMillis();
+            synchronized (persisting) {
+                byte[][] snapshot;
+                synchronized (this) {
+                    if (published)
+                        return;
+                    published = missing == 0;
+                    snapshot = hashes.clone();
+                }
+                if (published) {
+                    writeManifest(name, new Manifest(size, blockBytes, snapshot));
+                    uploads.remove(key, this);
+                    Files.deleteIfExists(state);
+                    return;
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (DataOutputStream out = new DataOutputStream(bytes)) {
+                    out.writeUTF(key);
+                    out.writeLong(size);
+                    out.writeInt(blockBytes);
+                    for (byte[] hash : snapshot)
+                        out.write(hash == null ? new byte[HASH_BYTES] : hash);
+                }
+                publish(state, bytes.toByteArray(), size);
+            }
+        }
+    }
+
+    ChunkStore(Path dir) throws IOException {
+        segmentDir = dir.resolve("segments");
+        manifestDir = dir.resolve("manifests");
+        uploadDir = dir.resolve("uploads");
+        Files.createDirectories(segmentDir);
+        Files.createDirectories(manifestDir);
+        Files.createDirectories(uploadDir);
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> found = Files.newDirectoryStream(segmentDir, "segment-*.dat")) {
+            found.forEach(files::add);
+        }
+        files.sort(null);
+        for (Path file : files) {
+            FileChannel segment = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.add(segment);
+            activeSize = scan(segments.size() - 1, segment);
+        }
+        if (segments.isEmpty())
+            roll();
+        loadManifests();
+        loadUploads();
+
+        metrics.gauge("store_images", manifests::size);
+        metrics.gauge("store_blocks", index::size);
+        metrics.gauge("store_segments", segments::size);
+    }
+
+    // Indexes every whole record of a segment and cuts off a torn one at its end,
+    // left by a crash in the middle of an append
+    private long scan(int id, FileChannel segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        long position = 0;
+        long size = segment.size();
+        while (position + RECORD_HEADER <= size) {
+            header.clear();
+            while (header.hasRemaining() && segment.read(header, position + header.position()) != -1) { }
+            header.flip();
+            byte[] hash = new byte[HASH_BYTES];
+            header.get(hash);
+            int length = header.getInt();
+            if (length < 0 || position + RECORD_HEADER + length > size)
+                break;
+            index.putIfAbsent(ByteBuffer.wrap(hash), new Location(id, position + RECORD_HEADER, length));
+            position += RECORD_HEADER + length;
+        }
+        if (position < size) {
+            System.out.println("Dropping " + (size - position) + " torn bytes at the end of segment " + id);
+            segment.truncate(position);
+        }
+        return position;
+    }
+
+    private void loadManifests() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(manifestDir)) {
+            walk.filter(Files::isRegularFile).forEach(files::add);
+        }
+        for (Path file : files) {
+            // Left behind by a crash before the rename; the upload never completed
+            if (file.getFileName().toString().startsWith(".manifest-")) {
+                Files.delete(file);
+                continue;
+            }
+            manifests.put(manifestDir.relativize(file).toString().replace(File.separatorChar, '/'), read(file));
+        }
+    }
+
+    // Uploads that were part way in when the node stopped, unless they have expired
+    private void loadUploads() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> found = Files.newDirectoryStream(uploadDir)) {
+            found.forEach(files::add);
+        }
+        long now = System.currentTimeMillis();
+        for (Path file : files) {
+            if (file.getFileName().toString().startsWith(".")
+                    || now - Files.getLastModifiedTime(file).toMillis() > UPLOAD_TTL_MS) {
+                Files.delete(file);
+                continue;
+            }
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+                String key = in.readUTF();
+                Upload upload = new Upload(key, key.substring(0, key.lastIndexOf('\n')), in.readLong(), in.readInt());
+                byte[] none = new byte[HASH_BYTES];
+                for (int i = 0; i < upload.hashes.length; i++) {
+                    byte[] hash = new byte[HASH_BYTES];
+                    in.readFully(hash);
+                    if (!Arrays.equals(hash, none))
+                        upload.set(i, hash);
+                }
+                uploads.put(key, upload);
+            }
+        }
+    }
+
+    private void roll() throws IOException {
+        // Later commits only sync the active segment, so this one has to be on disk first
+        if (!segments.isEmpty())
+            segments.get(segments.size() - 1).force(true);
+        Path file = segmentDir.resolve(String.format("segment-%06d.dat", segments.size()));
+        segments.add(FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE));
+        activeSize = 0;
+    }
+
+    boolean has(byte[] hash) {
+        return index.containsKey(ByteBuffer.wrap(hash));
+    }
+
+    // Stores the block between data's position and limit unless it is already here,
+    // and returns its hash. A block whose hash is not the expected one was damaged or
+    // lied about on the way, and is refused.
+    byte[] put(ByteBuffer data, byte[] expected) throws IOException {
+        byte[] hash = hash(data);
+        if (expected != null && !Arrays.equals(hash, expected))
+            throw new IOException("Block does not match its hash " + hex(expected));
+
+        synchronized (this) {
+            if (has(hash)) {
+                metrics.count("store_blocks_deduplicated_total");
+                return hash;
+            }
+            int length = data.remaining();
+            if (activeSize > 0 && activeSize + RECORD_HEADER + length > SEGMENT_BYTES)
+                roll();
+            int id = segments.size() - 1;
+            FileChannel active = segments.get(id);
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER).put(hash).putInt(length).flip();
+            long position = activeSize;
+            while (header.hasRemaining())
+                position += active.write(header, position);
+            while (data.hasRemaining())
+                position += active.write(data, position);
+            index.put(ByteBuffer.wrap(hash), new Location(id, activeSize + RECORD_HEADER, length));
+            activeSize = position;
+            metrics.add("store_bytes_written_total", length);
+        }
+        return hash;
+    }
+
+    // Joins the upload with this id, or starts it for the first of its stripes. A stripe
+    // that fails leaves the upload as it was, for a retry of the stripe to finish.
+    Upload begin(String name, String uploadId, long size, int blockBytes) throws IOException {
+        long now = System.currentTimeMillis();
+        for (Upload stale : uploads.values()) {
+            if (now - stale.touched > UPLOAD_TTL_MS && uploads.remove(stale.key, stale))
+                Files.deleteIfExists(stale.state);
+        }
+        String key = name + "\n" + uploadId;
+        Upload upload = uploads.computeIfAbsent(key, k -> new Upload(k, name, size, blockBytes));
+        if (upload.size != size || upload.blockBytes != blockBytes)
+            throw new IOException("Upload " + uploadId + " of " + name + " changed shape");
+        upload.touched = now;
+        return upload;
+    }
+
+    // The latest complete upload of name, or null when there is none
+    Manifest manifest(String name) {
+        return manifests.get(name);
+    }
+
+    private static Manifest read(Path file) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+        long size = bytes.getLong();
+        int blockBytes = bytes.getInt();
+        byte[][] hashes = new byte[blocks(size, blockBytes)][HASH_BYTES];
+        for (byte[] hash : hashes)
+            bytes.get(hash);
+        return new Manifest(size, blockBytes, hashes);
+    }
+
+    // Written aside and renamed over the old one, so a GET sees one upload or the other,
+    // and a crash leaves the old one or a complete new one
+    private void writeManifest(String name, Manifest manifest) throws IOException {
+        Path file = manifestDir.resolve(name);
+        Files.createDirectories(file.getParent());
+        ByteBuffer bytes = ByteBuffer.allocate(12 + manifest.hashes.length * HASH_BYTES);
+        bytes.putLong(manifest.size).putInt(manifest.blockBytes);
+        for (byte[] hash : manifest.hashes)
+            bytes.put(hash);
+        publish(file, bytes.array(), manifest.size);
+        manifests.put(name, manifest);
+    }
+
+    // Replaces file with bytes once they, and every block they could name, are on disk
+    private void publish(Path file, byte[] bytes, long size) throws IOException {
+        Path tmp = Files.createTempFile(file.getParent(), ".manifest-", ".tmp");
+        try {
+            Files.write(tmp, bytes);
+            // Blocks deduplicated against may be no older than the active segment
+            Path active;
+            synchronized (this) {
+                active = segmentDir.resolve(String.format("segment-%06d.dat", segments.size() - 1));
+            }
+            commits.commit(List.of(active, tmp), tmp, file, size);
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // The image's bytes, copied block by block out of the segments' mappings
+    ReliableSender.Source reader(Manifest manifest) {
+        return (dst, position) -> {
+            if (position >= manifest.size)
+                return -1;
+            int block = (int) (position / manifest.blockBytes);
+            int within = (int) (position % manifest.blockBytes);
+            Location at = index.get(ByteBuffer.wrap(manifest.hashes[block]));
+            if (at == null)
+                throw new IOException("Block " + hex(manifest.hashes[block]) + " is missing from the store");
+            int n = Math.min(dst.remaining(), at.length - within);
+            ByteBuffer slice = mapping(at.segment, at.offset + at.length).duplicate();
+            slice.position((int) (at.offset + within)).limit((int) (at.offset + within + n));
+            dst.put(slice);
+            return n;
+        };
+    }
+
+    // A mapping of segment covering at least its first end bytes
+    private MappedByteBuffer mapping(int segment, long end) throws IOException {
+        MappedByteBuffer map = maps.get(segment);
+        if (map != null && map.capacity() >= end)
+            return map;
+        synchronized (maps) {
+            map = maps.get(segment);
+            if (map == null || map.capacity() < end) {
+                // Blocks are indexed only once written, so the file already reaches end
+                FileChannel file = segments.get(segment);
+                map = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+                maps.put(segment, map);
+                metrics.count("store_segment_maps_total");
+            }
+            return map;
+        }
+    }
+
+    static int blocks(long size, int blockBytes) {
+        return (int) ((size + blockBytes - 1) / blockBytes);
+    }
+
+    // SHA-256 of the bytes between data's position and limit, leaving both as they are
+    static byte[] hash(ByteBuffer data) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(data.duplicate());
+            return sha.digest();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit(b >> 4 & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+
+    static byte[] unhex(String s) {
+        if (s.length() != HASH_BYTES * 2)
+            throw new IllegalArgumentException("Not a block hash: " + s);
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        return bytes;
+    }
+}
@@ -0,0 +1,164 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.zip.GZIPOutputStream;
+
+// Compressed copies of the text files TCPServer serves, one per content coding,
+// kept under DIR next to nothing else. A file is compressed the first time a
+// client asks for it in that coding and the copy is served (with sendfile, like
+// the original) until the file is POSTed again. gzip is always offered; zstd when
+// zstd-jni is on the classpath.
+class CompressedVariants {
+    private static final Path DIR = Paths.get(System.getProperty("http.compressedDir", ".compressed"));
+    // Smaller files gain too little to be worth a Content-Encoding
+    private static final long MIN_BYTES = Long.getLong("http.compressMinBytes", 256);
+    private static final Constructor<?> ZSTD = zstd();
+    // A copy is put in place under its source's lock, which invalidate() takes too, so
+    // one made from content a POST has since replaced cannot land after its invalidate
+    private static final Object[] LOCKS = new Object[64];
+
+    static {
+        for (int i = 0; i < LOCKS.length; i++)
+            LOCKS[i] = new Object();
+    }
+
+    // Looked up reflectively so the server still runs, gzip only, without the jar
+    private static Constructor<?> zstd() {
+        try {
+            Constructor<?> zstd = Class.forName("com.github.luben.zstd.ZstdOutputStream")
+                    .getConstructor(OutputStream.class);
+            // Loads the native library now rather than in the middle of a response
+            ((OutputStream) zstd.newInstance(new ByteArrayOutputStream())).close();
+            return zstd;
+        }
+        catch (ReflectiveOperationException | IOException | LinkageError e) {
+            return null;
+        }
+    }
+
+    // The coding to answer with for this Accept-Encoding, or null for identity.
+    // zstd is preferred over gzip when the client takes both.
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return null;
+        boolean gzip = false;
+        boolean zstd = false;
+        for (String part : acceptEncoding.toLowerCase(Locale.ROOT).split(",")) {
+            String[] params = part.trim().split(";");
+            String coding = params[0].trim();
+            boolean refused = false;
+            for (int i = 1; i < params.length; i++) {
+                String p = params[i].trim();
+                if (p.startsWith("q=")) {
+                    try {
+                        refused = Double.parseDouble(p.substring(2)) <= 0;
+                    }
+                    catch (NumberFormatException e) {
+                        refused = true;
+                    }
+                }
+            }
+            if (refused)
+                continue;
+            if (coding.equals("gzip") || coding.equals("x-gzip") || coding.equals("*"))
+                gzip = true;
+            if (coding.equals("zstd") || coding.equals("*"))
+                zstd = true;
+        }
+        if (zstd && ZSTD != null)
+            return "zstd";
+        return gzip ? "gzip" : null;
+    }
+
+    // Whether a body of this type could shrink; already compressed media cannot
+    static boolean compressible(String ctype) {
+        if (ctype == null)
+            return true;
+        String type = ctype.toLowerCase(Locale.ROOT);
+        if (type.startsWith("image/"))
+            return type.contains("svg") || type.contains("bmp");
+        return !(type.startsWith("audio/") || type.startsWith("video/") || type.contains("zip")
+                || type.contains("zstd") || type.contains("compressed"));
+    }
+
+    // The compressed copy of source, made now if there is none or it is older than
+    // source. Null when source is too small or does not get smaller.
+    static Path variant(Path source, String coding) throws IOException {
+        BasicFileAttributes before = Files.readAttributes(source, BasicFileAttributes.class);
+        long size = before.size();
+        if (size < MIN_BYTES)
+            return null;
+        Path variant = DIR.resolve(source + "." + coding);
+        if (!Files.exists(variant)
+                || Files.getLastModifiedTime(variant).compareTo(before.lastModifiedTime()) < 0) {
+            Files.createDirectories(variant.getParent());
+            Path tmp = Files.createTempFile(variant.getParent(), ".variant-", ".tmp");
+            try {
+                try (OutputStream out = open(Files.newOutputStream(tmp), coding)) {
+                    Files.copy(source, out);
+                }
+                synchronized (lock(source)) {
+                    // Replaced while it was being compressed: the copy is of neither
+                    // version for sure, so this response goes out uncompressed
+                    if (!same(before, Files.readAttributes(source, BasicFileAttributes.class)))
+                        return null;
+                    try {
+                        Files.move(tmp, variant, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    catch (AtomicMoveNotSupportedException e) {
+                        Files.move(tmp, variant, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            }
+            finally {
+                Files.deleteIfExists(tmp);
+            }
+            Metrics.get().count(Metrics.series("http_compressed_variants_total", "coding", coding));
+        }
+        // Kept even when it did not pay off, so the next GET does not try again
+        return Files.size(variant) < size ? variant : null;
+    }
+
+    // source was replaced; its copies describe the old content
+    static void invalidate(Path source) {
+        synchronized (lock(source)) {
+            for (String coding : new String[] {"gzip", "zstd"}) {
+                try {
+                    Files.deleteIfExists(DIR.resolve(source + "." + coding));
+                }
+                catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private static Object lock(Path source) {
+        return LOCKS[Math.floorMod(source.hashCode(), LOCKS.length)];
+    }
+
+    // Whether a and b, read at different times, are of the same file and content
+    private static boolean same(BasicFileAttributes a, BasicFileAttributes b) {
+        return a.size() == b.size() && a.lastModifiedTime().equals(b.lastModifiedTime())
+                && Objects.equals(a.fileKey(), b.fileKey());
+    }
+
+    private static OutputStream open(OutputStream out, String coding) throws IOException {
+        if (coding.equals("gzip"))
+            return new GZIPOutputStream(out, 64 * 1024);
+        try {
+            return (OutputStream) ZSTD.newInstance(out);
+        }
+        catch (ReflectiveOperationException e) {
+            out.close();
+            throw new IOException("zstd is not available", e);
+        }
+    }
+}
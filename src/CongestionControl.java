@@ -0,0 +1,154 @@
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+// Congestion window and send pacing for the relay, one per remote host and shared by
+// every transfer to it, so eight stripes or twenty front ends pushing at one node
+// back off together rather than each assuming the path is theirs.
+//
+// The window is AIMD over bytes, as in TCP Reno: it grows by what is acknowledged in
+// slow start and by about a chunk per round trip after, halves at most once a round
+// trip on a fast retransmit and falls to MIN_CWND on a timeout. Datagrams are spaced
+// by a token bucket refilled at gain * cwnd / srtt, so a window opens as a steady
+// stream rather than a burst that overruns the receiver's socket buffer.
+class CongestionControl {
+    // "off" leaves only each transfer's fixed window (relay.window, relay.windowBytes)
+    private static final boolean ENABLED = !"off".equals(System.getProperty("relay.cc", "aimd"));
+    private static final long INITIAL_CWND = Long.getLong("relay.initialCwndBytes", 256L << 10);
+    private static final long MIN_CWND = Long.getLong("relay.minCwndBytes", 16L << 10);
+    private static final long MAX_CWND = Long.getLong("relay.maxCwndBytes", 64L << 20);
+    // Bytes the bucket holds when full, the most sent back to back
+    private static final long BURST_BYTES = Long.getLong("relay.paceBurstBytes", 128L << 10);
+    private static final double SLOW_START_GAIN = 2.0;
+    private static final double GAIN = 1.25;
+    private static final long INITIAL_RTT_NS = 200 * 1_000_000L;
+    private static final String LOSS_CUTS = Metrics.series("relay_cwnd_cuts_total", "cause", "loss");
+    private static final String TIMEOUT_CUTS = Metrics.series("relay_cwnd_cuts_total", "cause", "timeout");
+
+    private static final ConcurrentHashMap<InetAddress, CongestionControl> PEERS = new ConcurrentHashMap<>();
+
+    private long cwnd = INITIAL_CWND;
+    private long ssthresh = MAX_CWND;
+    private long inFlight;
+    private long srtt = -1;
+    // No second cut before this (System.nanoTime), one round trip after the last
+    private long recoveryEnd;
+    // Token bucket: bytes that may go now, negative while senders are waiting their turn
+    private double tokens = BURST_BYTES;
+    private long refilled = System.nanoTime();
+    private final Metrics metrics = Metrics.get();
+
+    // The controller every transfer to peer shares; a fresh one when the channel
+    // has no network peer to share it with
+    static CongestionControl forPeer(InetAddress peer) {
+        if (peer == null)
+            return new CongestionControl();
+        return PEERS.computeIfAbsent(peer, p -> {
+            CongestionControl cc = new CongestionControl();
+            String host = p.getHostAddress();
+            Metrics m = Metrics.get();
+            m.gauge(Metrics.series("relay_cwnd_bytes", "peer", host), cc::cwnd);
+            m.gauge(Metrics.series("relay_inflight_bytes", "peer", host), cc::inFlight);
+            m.gauge(Metrics.series("relay_pacing_rate_bytes", "peer", host), cc::pacingRate);
+            m.gauge(Metrics.series("relay_srtt_us", "peer", host), cc::srttMicros);
+            return cc;
+        });
+    }
+
+    // Takes window for a new chunk of bytes. A transfer with nothing in flight always
+    // gets one, so none of those sharing the window is ever starved of it.
+    synchronized boolean tryAcquire(int bytes, boolean idle) {
+        if (ENABLED && !idle && inFlight + bytes > cwnd)
+            return false;
+        inFlight += bytes;
+        return true;
+    }
+
+    // Gives back window taken for chunks that will not be acknowledged
+    synchronized void release(long bytes) {
+        inFlight -= bytes;
+    }
+
+    // A chunk of bytes arrived
+    synchronized void onAck(int bytes) {
+        inFlight -= bytes;
+        if (cwnd < ssthresh)
+            cwnd += bytes;
+        else
+            cwnd += Math.max(1, (long) bytes * bytes / cwnd);
+        cwnd = Math.min(cwnd, MAX_CWND);
+    }
+
+    synchronized void onRtt(long rtt) {
+        srtt = srtt < 0 ? rtt : (7 * srtt + rtt) / 8;
+    }
+
+    // A chunk had to be resent after later ones got through
+    synchronized void onLoss() {
+        long now = System.nanoTime();
+        if (!ENABLED || now - recoveryEnd < 0)
+            return;
+        ssthresh = Math.max(MIN_CWND, cwnd / 2);
+        cwnd = ssthresh;
+        recoveryEnd = now + (srtt < 0 ? INITIAL_RTT_NS : srtt);
+        metrics.count(LOSS_CUTS);
+    }
+
+    // Nothing came back for a whole RTO: start over from the bottom
+    synchronized void onTimeout() {
+        long now = System.nanoTime();
+        if (!ENABLED)
+            return;
+        ssthresh = Math.max(MIN_CWND, cwnd / 2);
+        cwnd = MIN_CWND;
+        recoveryEnd = now + (srtt < 0 ? INITIAL_RTT_NS : srtt);
+        metrics.count(TIMEOUT_CUTS);
+    }
+
+    // Waits for the bucket to allow a datagram of bytes. Senders take their turn in
+    // the order they ask, each waiting out what the ones before it ran up.
+    void pace(int bytes) {
+        metrics.add("relay_sent_bytes_total", bytes);
+        if (!ENABLED)
+            return;
+        long wait;
+        synchronized (this) {
+            double rate = rate();
+            if (rate <= 0)
+                return;
+            long now = System.nanoTime();
+            tokens = Math.min(BURST_BYTES, tokens + (now - refilled) * rate);
+            refilled = now;
+            tokens -= bytes;
+            wait = tokens < 0 ? (long) (-tokens / rate) : 0;
+        }
+        if (wait > 0) {
+            metrics.count("relay_paced_sends_total");
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    // Bytes per nanosecond, or 0 before there is a round trip to go by
+    private double rate() {
+        if (srtt <= 0)
+            return 0;
+        return (cwnd < ssthresh ? SLOW_START_GAIN : GAIN) * cwnd / srtt;
+    }
+
+    private synchronized long cwnd() {
+        return cwnd;
+    }
+
+    private synchronized long inFlight() {
+        return inFlight;
+    }
+
+    // Bytes per second
+    private synchronized long pacingRate() {
+        return (long) (rate() * 1e9);
+    }
+
+    private synchronized long srttMicros() {
+        return srtt < 0 ? 0 : srtt / 1000;
+    }
+}
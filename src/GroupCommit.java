@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// Makes finished writes durable before they are acknowledged, many at a time. A
+// writer thread takes every commit waiting when it comes round: it fsyncs their files
+// once each, renames each one's temp file into place and fsyncs the directories the
+// renames touched, so concurrent POSTs into one directory share every fsync. The
+// callers block until their batch is on disk and only then reply.
+//
+// A batch goes as soon as the previous one is done; -Dstore.commitMs holds it open
+// that much longer for more to join, unless -Dstore.commitBytes are already waiting.
+class GroupCommit {
+    private static final long COMMIT_MS = Long.getLong("store.commitMs", 0);
+    private static final long COMMIT_BYTES = Long.getLong("store.commitBytes", 8L << 20);
+
+    private final String commitsSeries;
+    private final String entriesSeries;
+    private final String latencySeries;
+    private List<Commit> pending = new ArrayList<>();
+    private long pendingBytes;
+
+    private static final class Commit {
+        final Collection<Path> files;
+        final Path from;
+        final Path to;
+        final long bytes;
+        boolean done = false;
+        IOException failure;
+
+        Commit(Collection<Path> files, Path from, Path to, long bytes) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.bytes = bytes;
+        }
+    }
+
+    GroupCommit(String name) {
+        commitsSeries = Metrics.series("store_commits_total", "store", name);
+        entriesSeries = Metrics.series("store_commit_entries_total", "store", name);
+        latencySeries = Metrics.series("store_commit_seconds", "store", name);
+        Thread writer = new Thread(this::run, "group-commit-" + name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Fsyncs files, then renames from to to (replacing it) and fsyncs to's directory.
+    // Returns once all of that is on disk; bytes is how much this commit adds to the batch.
+    void commit(Collection<Path> files, Path from, Path to, long bytes) throws IOException {
+        Commit commit = new Commit(files, from, to, bytes);
+        synchronized (this) {
+            pending.add(commit);
+            pendingBytes += bytes;
+            notifyAll();
+            try {
+                while (!commit.done)
+                    wait();
+            }
+            catch (InterruptedException e) {
+                // The commit still happens; only this caller stops waiting for it
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        if (commit.failure != null)
+            throw commit.failure;
+    }
+
+    private void run() {
+        while (true) {
+            List<Commit> batch;
+            try {
+                synchronized (this) {
+                    while (pending.isEmpty())
+                        wait();
+                    long deadline = System.currentTimeMillis() + COMMIT_MS;
+                    long left;
+                    while (pendingBytes < COMMIT_BYTES && (left = deadline - System.currentTimeMillis()) > 0)
+                        wait(left);
+                    batch = pending;
+                    pending = new ArrayList<>();
+                    pendingBytes = 0;
+                }
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+
+            long start = System.nanoTime();
+            try {
+                write(batch);
+            }
+            catch (RuntimeException e) {
+                // Not knowing what got to disk, the whole batch fails, and the writer
+                // lives on for the next one
+                for (Commit commit : batch) {
+                    if (commit.failure == null)
+                        commit.failure = new IOException("Commit failed: " + e, e);
+                }
+            }
+            finally {
+                // Whatever happened, nobody is left waiting on this batch
+                synchronized (this) {
+                    for (Commit commit : batch)
+                        commit.done = true;
+                    notifyAll();
+                }
+            }
+            Metrics.get().time(latencySeries, start);
+            Metrics.get().count(commitsSeries);
+            Metrics.get().add(entriesSeries, batch.size());
+        }
+    }
+
+    private void write(List<Commit> batch) {
+        Set<Path> files = new LinkedHashSet<>();
+        for (Commit commit : batch)
+            files.addAll(commit.files);
+        try {
+            for (Path file : files)
+                force(file);
+        }
+        catch (IOException e) {
+            // Nothing in the batch is known to be on disk
+            for (Commit commit : batch)
+                commit.failure = e;
+            return;
+        }
+
+        Set<Path> dirs = new LinkedHashSet<>();
+        for (Commit commit : batch) {
+            try {
+                try {
+                    Files.move(commit.from, commit.to, StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+                catch (AtomicMoveNotSupportedException e) {
+                    // Across file systems the move is a copy, which the fsync above
+                    // never saw
+                    Files.move(commit.from, commit.to, StandardCopyOption.REPLACE_EXISTING);
+                    force(commit.to);
+                }
+                dirs.add(commit.to.toAbsolutePath().getParent());
+            }
+            catch (IOException e) {
+                commit.failure = e;
+            }
+        }
+        try {
+            for (Path dir : dirs)
+                force(dir);
+        }
+        catch (IOException e) {
+            for (Commit commit : batch) {
+                if (commit.failure == null)
+                    commit.failure = e;
+            }
+        }
+    }
+
+    // fsync of a file or, on the platforms that allow opening one, a directory
+    private static void force(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+
+// Parses request heads straight from a connection's read buffer, one line at a time
+// as the bytes arrive. Each call picks up where the last stopped, so a head split over
+// many reads is scanned once. Header names are matched as bytes and never become
+// Strings; methods and common content types are shared constants, and only the few
+// values the server keeps (path, ranges, Accept-Encoding) are decoded. One parser per
+// connection, reused for every request on it.
+class HttpParser {
+    private static final String PARSE_PHASE = Metrics.series("http_phase_seconds", "phase", "parse");
+    // Longest head taken; a client sending more is dropped
+    private static final int MAX_HEADER_BYTES = Integer.getInteger("http.maxHeaderBytes", 8 * 1024);
+
+    // Also the only values metrics label requests with; see TCPServer.recordRequest
+    static final String[] METHODS = {"GET", "POST", "HEAD", "PUT", "PATCH", "DELETE", "OPTIONS"};
+    static final String[] CONTENT_TYPES = {"image/png", "image/jpeg", "image/gif", "image/webp",
+            "text/plain", "text/html", "text/css", "application/json", "application/octet-stream"};
+    private static final byte[][] METHOD_BYTES = ascii(METHODS);
+    private static final byte[][] CONTENT_TYPE_BYTES = ascii(CONTENT_TYPES);
+
+    private static final byte[] CONNECTION = ascii("connection");
+    private static final byte[] CONTENT_TYPE = ascii("content-type");
+    private static final byte[] CONTENT_LENGTH = ascii("content-length");
+    private static final byte[] TRANSFER_ENCODING = ascii("transfer-encoding");
+    private static final byte[] RANGE = ascii("range");
+    private static final byte[] CONTENT_RANGE = ascii("content-range");
+    private static final byte[] ACCEPT_ENCODING = ascii("accept-encoding");
+    private static final byte[] EXPECT = ascii("expect");
+    private static final byte[] CLOSE = ascii("close");
+    private static final byte[] KEEP_ALIVE = ascii("keep-alive");
+    private static final byte[] CHUNKED = ascii("chunked");
+    private static final byte[] HTTP_1_1 = ascii("HTTP/1.1");
+
+    // The request taking shape, null before its request line
+    private HttpRequest req;
+    // Start of the line being read and how far the buffer has been scanned for its end
+    private int lineStart;
+    private int scanned;
+
+    // Parses what the buffer (in write mode) holds of the current head. Once the head
+    // is complete, compacts the buffer so only the bytes following it remain and
+    // returns the request; null until then.
+    HttpRequest parse(ByteBuffer in) throws IOException {
+        long start = System.nanoTime();
+        int end = in.position();
+        for (; scanned < end; scanned++) {
+            if (in.get(scanned) != '\n')
+                continue;
+            int lineEnd = scanned > lineStart && in.get(scanned - 1) == '\r' ? scanned - 1 : scanned;
+            int next = scanned + 1;
+            if (next > MAX_HEADER_BYTES)
+                throw new IOException("Request head over " + MAX_HEADER_BYTES + " bytes");
+            if (lineEnd == lineStart && req != null)
+                return finish(in, next, start);
+            if (Log.DEBUG)
+                Log.debug(string(in, lineStart, lineEnd, StandardCharsets.ISO_8859_1));
+            if (req == null) {
+                // Empty lines ahead of the request line are tolerated
+                if (lineEnd != lineStart)
+                    requestLine(in, lineStart, lineEnd);
+            }
+            else
+                field(in, lineStart, lineEnd);
+            lineStart = next;
+        }
+        if (end > MAX_HEADER_BYTES)
+            throw new IOException("Request head over " + MAX_HEADER_BYTES + " bytes");
+        return null;
+    }
+
+    private HttpRequest finish(ByteBuffer in, int headEnd, long start) {
+        HttpRequest done = req;
+        req = null;
+        lineStart = 0;
+        scanned = 0;
+        in.flip().position(headEnd);
+        in.compact();
+        done.received = start;
+        Metrics.get().time(PARSE_PHASE, start);
+        return done;
+    }
+
+    // METHOD SP /path SP HTTP/x.y
+    private void requestLine(ByteBuffer in, int from, int to) throws IOException {
+        int sp1 = indexOf(in, from, to, (byte) ' ');
+        int sp2 = sp1 == -1 ? -1 : indexOf(in, sp1 + 1, to, (byte) ' ');
+        if (sp1 == -1 || sp1 + 1 >= to || in.get(sp1 + 1) != '/')
+            throw new IOException("Malformed request line");
+        req = new HttpRequest();
+        req.mode = constant(in, from, sp1, METHOD_BYTES, METHODS, false);
+        int pathEnd = sp2 == -1 ? to : sp2;
+        req.filename = string(in, sp1 + 2, pathEnd, StandardCharsets.UTF_8);
+        req.badPath = !validPath(req.filename);
+        req.keepAlive = sp2 != -1 && equalsBytes(in, sp2 + 1, to, HTTP_1_1, false);
+    }
+
+    // name: value, with the optional whitespace around value dropped
+    private void field(ByteBuffer in, int from, int to) throws IOException {
+        int colon = indexOf(in, from, to, (byte) ':');
+        // Continuation lines and lines without a name carry nothing we use
+        if (colon <= from || in.get(from) == ' ' || in.get(from) == '\t')
+            return;
+        int v = colon + 1;
+        int vEnd = to;
+        while (v < vEnd && isSpace(in.get(v)))
+            v++;
+        while (vEnd > v && isSpace(in.get(vEnd - 1)))
+            vEnd--;
+
+        if (equalsBytes(in, from, colon, CONTENT_TYPE, true)) {
+            // The media type alone, parameters off
+            int typeEnd = v;
+            while (typeEnd < vEnd && in.get(typeEnd) != ';' && !isSpace(in.get(typeEnd)))
+                typeEnd++;
+            String ctype = constant(in, v, typeEnd, CONTENT_TYPE_BYTES, CONTENT_TYPES, true);
+            req.ctype = ctype != null ? ctype : string(in, v, typeEnd, StandardCharsets.ISO_8859_1);
+            req.imgFlag = req.ctype.startsWith("image");
+        }
+        else if (equalsBytes(in, from, colon, CONTENT_LENGTH, true)) {
+            // Anything but digits would leave the body's end, and so the next request, in doubt
+            if (v == vEnd || vEnd - v > 18)
+                throw new IOException("Bad Content-Length");
+            long length = 0;
+            for (int i = v; i < vEnd; i++) {
+                byte b = in.get(i);
+                if (b < '0' || b > '9')
+                    throw new IOException("Bad Content-Length");
+                length = length * 10 + (b - '0');
+            }
+            req.contentLength = length;
+        }
+        else if (equalsBytes(in, from, colon, CONNECTION, true)) {
+            if (contains(in, v, vEnd, CLOSE))
+                req.keepAlive = false;
+            else if (contains(in, v, vEnd, KEEP_ALIVE))
+                req.keepAlive = true;
+        }
+        else if (equalsBytes(in, from, colon, TRANSFER_ENCODING, true))
+            req.chunked = contains(in, v, vEnd, CHUNKED);
+        else if (equalsBytes(in, from, colon, RANGE, true))
+            req.range = string(in, v, vEnd, StandardCharsets.ISO_8859_1);
+        else if (equalsBytes(in, from, colon, CONTENT_RANGE, true))
+            req.contentRange = string(in, v, vEnd, StandardCharsets.ISO_8859_1);
+        else if (equalsBytes(in, from, colon, ACCEPT_ENCODING, true))
+            req.acceptEncoding = string(in, v, vEnd, StandardCharsets.ISO_8859_1);
+        else if (equalsBytes(in, from, colon, EXPECT, true))
+            req.expectContinue = true;
+    }
+
+    // Control characters are refused on every platform, the rest as the file system does
+    private static boolean validPath(String path) {
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) < 0x20 || path.charAt(i) == 0x7f)
+                return false;
+        }
+        try {
+            Paths.get(path);
+            return true;
+        }
+        catch (InvalidPathException e) {
+            return false;
+        }
+    }
+
+    // The shared String whose bytes in[from, to) spell, or null
+    private static String constant(ByteBuffer in, int from, int to, byte[][] bytes, String[] strings,
+                                   boolean ignoreCase) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (equalsBytes(in, from, to, bytes[i], ignoreCase))
+                return strings[i];
+        }
+        return null;
+    }
+
+    // Whether in[from, to) is expected; with ignoreCase, expected must be lower case
+    private static boolean equalsBytes(ByteBuffer in, int from, int to, byte[] expected, boolean ignoreCase) {
+        if (to - from != expected.length)
+            return false;
+        for (int i = 0; i < expected.length; i++) {
+            byte b = in.get(from + i);
+            if ((ignoreCase ? lower(b) : b) != expected[i])
+                return false;
+        }
+        return true;
+    }
+
+    // Whether lower-case token occurs in in[from, to), ignoring case
+    private static boolean contains(ByteBuffer in, int from, int to, byte[] token) {
+        for (int i = from; i + token.length <= to; i++) {
+            if (equalsBytes(in, i, i + token.length, token, true))
+                return true;
+        }
+        return false;
+    }
+
+    private static int indexOf(ByteBuffer in, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (in.get(i) == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private static String string(ByteBuffer in, int from, int to, Charset charset) {
+        byte[] bytes = new byte[to - from];
+        in.duplicate().position(from).get(bytes);
+        return new String(bytes, charset);
+    }
+
+    private static byte lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[][] ascii(String[] strings) {
+        byte[][] bytes = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++)
+            bytes[i] = ascii(strings[i]);
+        return bytes;
+    }
+}
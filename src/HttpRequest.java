@@ -0,0 +1,26 @@
+// The request line and headers of one client request, as HttpParser found them
+class HttpRequest {
+    String mode;
+    String filename;
+    // A path no file can have (a NUL in it, say); answered with 400
+    boolean badPath;
+    String ctype;
+    boolean imgFlag;
+    boolean expectContinue;
+    long contentLength = -1;
+    boolean chunked;
+    String range;
+    // A piece of a resumable PUT/PATCH; see ResumableUploads
+    String contentRange;
+    String acceptEncoding;
+    // HTTP/1.1 keeps the connection open unless told otherwise, 1.0 only when asked
+    boolean keepAlive;
+    // When the headers were complete (System.nanoTime), and the status we answered with
+    long received;
+    int status;
+
+    // Whether the method is one whose body we read: POST, or PUT/PATCH with a piece of an upload
+    boolean hasBody() {
+        return "POST".equals(mode) || "PUT".equals(mode) || "PATCH".equals(mode);
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Byte-bounded LRU cache of images relayed from the UDP server, kept off-heap in
+// read-only direct buffers so hot images cost neither a UDP round trip nor GC time.
+class ImageCache {
+    private final long maxBytes;
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    // Bumped by every invalidation, so a fetch that overlapped one does not cache what it read
+    private long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    ImageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // A view of the cached image positioned at its start, or null
+    synchronized ByteBuffer get(String name) {
+        ByteBuffer data = entries.get(name);
+        if (data == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return data.duplicate();
+    }
+
+    // Taken before fetching name, handed back to put
+    synchronized long generation() {
+        return generation;
+    }
+
+    // Caches the first size bytes of file under name unless an invalidation happened
+    // since generation was taken, or the image would not fit
+    void put(String name, FileChannel file, long size, long generation) throws IOException {
+        if (size > maxBytes || size > Integer.MAX_VALUE)
+            return;
+        ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+        while (data.hasRemaining()) {
+            if (file.read(data, data.position()) == -1)
+                return;
+        }
+        data.flip();
+
+        synchronized (this) {
+            if (generation != this.generation)
+                return;
+            ByteBuffer old = entries.put(name, data.asReadOnlyBuffer());
+            if (old != null)
+                bytes -= old.capacity();
+            bytes += size;
+
+            Iterator<Map.Entry<String, ByteBuffer>> it = entries.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().getValue().capacity();
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    synchronized void invalidate(String name) {
+        generation++;
+        ByteBuffer old = entries.remove(name);
+        if (old != null)
+            bytes -= old.capacity();
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    long evictions() {
+        return evictions.get();
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+}
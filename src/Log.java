@@ -0,0 +1,10 @@
+// Level gate for the chatty output: -Dlog.level=debug prints every request header
+// line, the default (info) keeps them off the hot path
+class Log {
+    static final boolean DEBUG = System.getProperty("log.level", "info").equalsIgnoreCase("debug");
+
+    static void debug(String line) {
+        if (DEBUG)
+            System.out.println(line);
+    }
+}
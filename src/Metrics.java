@@ -0,0 +1,191 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Process-wide counters, gauges and latency histograms, shared by the front end and
+// the UDP relay. Series are named the Prometheus way ("name{label=\"value\"}"), so
+// TCPServer can serve them as-is on /metrics; the same maps are published over JMX.
+class Metrics implements MetricsMXBean {
+    private static final Metrics INSTANCE = new Metrics();
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Latency> latencies = new ConcurrentHashMap<>();
+
+    private Metrics() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("relay:type=Metrics"));
+        }
+        catch (JMException e) {
+            System.out.println("Metrics are not published over JMX: " + e.getMessage());
+        }
+    }
+
+    static Metrics get() {
+        return INSTANCE;
+    }
+
+    void count(String name) {
+        add(name, 1);
+    }
+
+    void add(String name, long n) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(n);
+    }
+
+    void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    // Records how long something took since startNanos (a System.nanoTime() reading)
+    void time(String name, long startNanos) {
+        latencies.computeIfAbsent(name, k -> new Latency()).record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    static String series(String name, String... labels) {
+        StringBuilder sb = new StringBuilder(name).append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(labels[i]).append("=\"");
+            escape(sb, labels[i + 1] == null ? "" : labels[i + 1]);
+            sb.append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    // value if it is one of known, else "other": every distinct label value is a series
+    // kept for good, so one a client chooses must come from a fixed set
+    static String oneOf(String value, String... known) {
+        for (String k : known) {
+            if (k.equals(value))
+                return k;
+        }
+        return "other";
+    }
+
+    // Label values as the text format wants them: backslash, quote and newline escaped
+    private static void escape(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"')
+                sb.append('\\').append(c);
+            else if (c == '\n')
+                sb.append("\\n");
+            else
+                sb.append(c);
+        }
+    }
+
+    // Prometheus text exposition format
+    String render() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : getCounters().entrySet())
+            sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        for (Map.Entry<String, Long> e : getGauges().entrySet())
+            sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        for (Map.Entry<String, Latency> e : new TreeMap<>(latencies).entrySet()) {
+            String name = e.getKey();
+            Latency l = e.getValue();
+            for (double q : new double[] {0.5, 0.9, 0.99, 0.999})
+                sb.append(withLabel(name, "quantile", String.valueOf(q))).append(' ')
+                        .append(l.percentile(q) / 1e6).append('\n');
+            sb.append(suffixed(name, "_count")).append(' ').append(l.count.sum()).append('\n');
+            sb.append(suffixed(name, "_sum")).append(' ').append(l.sum.sum() / 1e6).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String withLabel(String series, String label, String value) {
+        int brace = series.indexOf('{');
+        if (brace == -1)
+            return series + "{" + label + "=\"" + value + "\"}";
+        return series.substring(0, series.length() - 1) + "," + label + "=\"" + value + "\"}";
+    }
+
+    private static String suffixed(String series, String suffix) {
+        int brace = series.indexOf('{');
+        return brace == -1 ? series + suffix : series.substring(0, brace) + suffix + series.substring(brace);
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> out = new TreeMap<>();
+        counters.forEach((k, v) -> out.put(k, v.sum()));
+        return out;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> out = new TreeMap<>();
+        gauges.forEach((k, v) -> out.put(k, v.getAsLong()));
+        return out;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMicros() {
+        Map<String, Long> out = new TreeMap<>();
+        latencies.forEach((k, l) -> {
+            out.put(withLabel(k, "quantile", "0.5"), l.percentile(0.5));
+            out.put(withLabel(k, "quantile", "0.99"), l.percentile(0.99));
+            out.put(suffixed(k, "_max"), l.max.get());
+            out.put(suffixed(k, "_count"), l.count.sum());
+        });
+        return out;
+    }
+
+    // Log-linear histogram of microseconds: 8 buckets per power of two, so any
+    // percentile is within 12.5% of the truth, in a fixed 2.5 KB per series
+    private static final class Latency {
+        private static final int BUCKETS = 8 * 40;
+
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final LongAdder count = new LongAdder();
+        final LongAdder sum = new LongAdder();
+        final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long micros) {
+            micros = Math.max(0, micros);
+            buckets.incrementAndGet(Math.min(index(micros), BUCKETS - 1));
+            count.increment();
+            sum.add(micros);
+            max.accumulate(micros);
+        }
+
+        // Upper bound of the bucket holding the q-th quantile
+        long percentile(double q) {
+            long total = count.sum();
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank)
+                    return Math.min(upper(i), max.get());
+            }
+            return max.get();
+        }
+
+        private static int index(long micros) {
+            if (micros < 8)
+                return (int) micros;
+            int log = 63 - Long.numberOfLeadingZeros(micros);
+            return (log - 2) * 8 + (int) (micros >>> (log - 3) & 7);
+        }
+
+        private static long upper(int index) {
+            if (index < 8)
+                return index;
+            int log = index / 8 + 2;
+            return ((8L + index % 8 + 1) << (log - 3)) - 1;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+import java.util.Map;
+
+// JMX view of Metrics, under relay:type=Metrics
+public interface MetricsMXBean {
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getGauges();
+
+    // p50, p99, max and count of each latency series, in microseconds
+    Map<String, Long> getLatencyMicros();
+}
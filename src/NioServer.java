@@ -0,0 +1,417 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+// Non-blocking front end for TCPServer. A few event loops multiplex every open
+// connection and parse headers as bytes arrive; only complete requests are handed to
+// the worker pool, so idle clients do not hold a thread. Body bytes are read on the
+// loops too but written to disk by the workers, so a slow disk stalls only the
+// uploads waiting on it, not every connection on a loop. Kept-alive connections,
+// and uploads waiting for more of their body, go back to their loop after each turn.
+// At most TCPServer.MAX_CONNECTIONS are open at once; past that, or when an accept
+// fails (out of file descriptors, say), the listener stops accepting for a while and
+// new clients wait in the backlog, as with the blocking engine.
+class NioServer implements Closeable {
+    // Also the limit on the size of the request headers
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    // How often each loop looks for connections that have gone quiet
+    private static final long SWEEP_MS = 1000;
+    // How long accepting stops after an accept fails
+    private static final long ACCEPT_BACKOFF_MS = 100;
+    private static final String BODY_PHASE = Metrics.series("http_phase_seconds", "phase", "body");
+
+    private final TCPServer server;
+    private final ExecutorService workers;
+    private final EventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+    private int nextLoop = 0;
+    // One per open connection
+    private final Semaphore permits;
+    // OP_ACCEPT on the first loop; its interest is dropped while accepting is paused.
+    // Only that loop touches it, and acceptResumeAt.
+    private SelectionKey acceptKey;
+    private long acceptResumeAt = 0;
+    private volatile boolean acceptPaused = false;
+
+    NioServer(TCPServer server, int eventLoops, ExecutorService workers) throws IOException {
+        this.server = server;
+        this.workers = workers;
+        permits = new Semaphore(server.MAX_CONNECTIONS);
+        loops = new EventLoop[Math.max(1, eventLoops)];
+        for (int i = 0; i < loops.length; i++)
+            loops[i] = new EventLoop();
+    }
+
+    // Accepts on the first event loop and blocks until the server is closed
+    void serve(int port) throws IOException, InterruptedException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        acceptKey = serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+
+        Thread[] threads = new Thread[loops.length];
+        for (int i = 0; i < loops.length; i++) {
+            threads[i] = new Thread(loops[i], "nio-loop-" + i);
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (serverChannel != null)
+            serverChannel.close();
+        for (EventLoop loop : loops)
+            loop.selector.wakeup();
+    }
+
+    // Takes every connection waiting in the backlog that there is room for. A failed
+    // accept leaves the listener itself usable, so it only pauses accepting.
+    private void accept() {
+        while (permits.tryAcquire()) {
+            SocketChannel ch = null;
+            try {
+                ch = serverChannel.accept();
+                if (ch == null) {
+                    permits.release();
+                    return;
+                }
+                ch.configureBlocking(false);
+                // As in TCPServer.handleClient: headers and body are separate writes
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+            catch (IOException e) {
+                System.err.println("Accept failed, pausing for " + ACCEPT_BACKOFF_MS + " ms: " + e.getMessage());
+                if (ch != null)
+                    closeQuietly(ch);
+                permits.release();
+                pauseAccepting(ACCEPT_BACKOFF_MS);
+                return;
+            }
+            loops[nextLoop].add(ch);
+            nextLoop = (nextLoop + 1) % loops.length;
+        }
+        // MAX_CONNECTIONS are open; the next to close lets accepting resume
+        pauseAccepting(0);
+    }
+
+    private void pauseAccepting(long ms) {
+        acceptPaused = true;
+        acceptResumeAt = System.currentTimeMillis() + ms;
+        acceptKey.interestOps(0);
+    }
+
+    // On the first loop before each select: accepts again once the pause is over and
+    // there is room for a connection. Returns how long the select may wait.
+    private long resumeAccepting(long timeout) {
+        if (!acceptPaused || !acceptKey.isValid())
+            return timeout;
+        long wait = acceptResumeAt - System.currentTimeMillis();
+        if (wait > 0)
+            return Math.min(timeout, wait);
+        if (permits.availablePermits() == 0)
+            return timeout;
+        acceptPaused = false;
+        acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        return timeout;
+    }
+
+    // Closes conn's socket, dropping any body half spooled, and frees its permit
+    private void close(Connection conn) {
+        conn.abort();
+        closeQuietly(conn.channel);
+        if (!conn.closed) {
+            conn.closed = true;
+            permits.release();
+            if (acceptPaused)
+                loops[0].selector.wakeup();
+        }
+    }
+
+    // Advances the connection's request with whatever the socket has (fill) or, for a
+    // connection that just came back from a worker, with the bytes already buffered
+    private void read(SelectionKey key, boolean fill) {
+        Connection conn = (Connection) key.attachment();
+        try {
+            if (!(fill ? conn.read() : conn.advance())) {
+                close(conn);
+                return;
+            }
+            if (conn.complete) {
+                // The worker owns the connection from here on
+                key.interestOps(0);
+                conn.withWorker = true;
+                workers.execute(() -> serve(conn));
+            }
+            else if (conn.bodyPending()) {
+                // As it does while the body bytes read so far go to disk
+                key.interestOps(0);
+                conn.withWorker = true;
+                workers.execute(() -> spool(conn));
+            }
+        }
+        catch (IOException e) {
+            System.out.println(e.getMessage());
+            close(conn);
+        }
+    }
+
+    // On a worker: writes out the body bytes conn has buffered, then serves the request
+    // once they are all in or hands the connection back to its loop for more
+    private void spool(Connection conn) {
+        try {
+            if (conn.spool())
+                serve(conn);
+            else
+                conn.loop.resume(conn);
+        }
+        catch (BodySpooler.MalformedException e) {
+            try (ChannelOutputStream output = new ChannelOutputStream(conn.channel)) {
+                server.badRequest(conn.req, output, e);
+            }
+            catch (IOException ignored) { }
+            close(conn);
+        }
+        catch (IOException e) {
+            System.out.println(e.getMessage());
+            close(conn);
+        }
+        // Nothing else would close it: its loop leaves it alone until it is resumed
+        catch (RuntimeException e) {
+            System.err.println("Spooling " + conn.req.filename + ": " + e);
+            close(conn);
+        }
+    }
+
+    private void serve(Connection conn) {
+        boolean keepAlive = false;
+        try (ChannelOutputStream output = new ChannelOutputStream(conn.channel)) {
+            conn.req.keepAlive = server.keepAlive(conn.req, ++conn.served);
+            server.serveRequest(conn.req, conn.body, output);
+            keepAlive = conn.req.keepAlive;
+        }
+        catch (IOException e) { System.out.println(e.getMessage()); }
+        catch (RuntimeException e) {
+            System.err.println("Serving " + conn.req.filename + ": " + e);
+            keepAlive = false;
+        }
+        finally {
+            server.recordRequest(conn.req);
+        }
+
+        if (keepAlive) {
+            conn.reset();
+            conn.loop.resume(conn);
+        }
+        else
+            close(conn);
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        }
+        catch (IOException ignored) { }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> resumed = new ConcurrentLinkedQueue<>();
+        private long lastSweep = System.currentTimeMillis();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void add(SocketChannel ch) {
+            pending.add(ch);
+            selector.wakeup();
+        }
+
+        // Takes a connection back from a worker once its response is out, or once it
+        // has written out the body bytes read so far
+        void resume(Connection conn) {
+            resumed.add(conn);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try (selector) {
+                while (running) {
+                    selector.select(this == loops[0] ? resumeAccepting(SWEEP_MS) : SWEEP_MS);
+
+                    SocketChannel ch;
+                    while ((ch = pending.poll()) != null) {
+                        Connection conn = new Connection(ch, this);
+                        try {
+                            ch.register(selector, SelectionKey.OP_READ, conn);
+                        }
+                        catch (ClosedChannelException e) {
+                            close(conn);
+                        }
+                    }
+
+                    Connection conn;
+                    while ((conn = resumed.poll()) != null) {
+                        SelectionKey key = conn.channel.keyFor(selector);
+                        if (key == null || !key.isValid()) {
+                            close(conn);
+                            continue;
+                        }
+                        // The worker's turn, however long, is not the client's silence
+                        conn.withWorker = false;
+                        conn.lastActive = System.currentTimeMillis();
+                        key.interestOps(SelectionKey.OP_READ);
+                        // A pipelining client may have sent the next request already
+                        read(key, false);
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            accept();
+                        else if (key.isReadable())
+                            read(key, true);
+                    }
+
+                    if (System.currentTimeMillis() - lastSweep >= SWEEP_MS)
+                        closeIdle();
+                }
+            }
+            catch (IOException e) {
+                if (running)
+                    System.out.println(e.getMessage());
+            }
+        }
+
+        // Closes connections waiting on a client that has said nothing for too long.
+        // Those a worker has are left alone; it may close them at any moment, which
+        // is why this goes by withWorker and not by the key's interest.
+        private void closeIdle() {
+            long now = System.currentTimeMillis();
+            lastSweep = now;
+            for (SelectionKey key : selector.keys()) {
+                if (!(key.attachment() instanceof Connection))
+                    continue;
+                Connection conn = (Connection) key.attachment();
+                if (conn.withWorker)
+                    continue;
+                long timeout = conn.idle() ? server.KEEP_ALIVE_MS : server.READ_TIMEOUT_MS;
+                if (now - conn.lastActive > timeout)
+                    close(conn);
+            }
+        }
+    }
+
+    // Read state of one connection while its request is still arriving. The buffer
+    // outlives each request, so bytes of a pipelined one carry over to the next.
+    private static class Connection {
+        final SocketChannel channel;
+        final EventLoop loop;
+        final ByteBuffer in = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        final HttpParser parser = new HttpParser();
+        HttpRequest req;
+        BodySpooler spool;
+        Path body;
+        boolean complete = false;
+        int served = 0;
+        long lastActive = System.currentTimeMillis();
+        // Set by close(), on whichever thread has the connection at the time
+        boolean closed = false;
+        // Whether a worker has the connection; only its loop reads or writes this
+        boolean withWorker = false;
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        // Reads whatever has arrived and advances the request. Returns false when
+        // the connection should be dropped (EOF, or headers that do not fit the buffer).
+        boolean read() throws IOException {
+            int n = channel.read(in);
+            if (n == -1)
+                return false;
+            Metrics.get().add("http_bytes_in_total", n);
+            lastActive = System.currentTimeMillis();
+            return advance();
+        }
+
+        // Advances the request with the buffered bytes. Only the headers are parsed
+        // here; a body is left in the buffer for spool() on a worker.
+        boolean advance() throws IOException {
+            if (req == null) {
+                req = parser.parse(in);
+                if (req == null)
+                    return in.hasRemaining();
+                complete = !BodySpooler.expected(req);
+            }
+            return true;
+        }
+
+        // Whether a worker has body work to do: start the spool file (and answer
+        // Expect: 100-continue), or write out body bytes that have arrived
+        boolean bodyPending() {
+            return req != null && !complete && (spool == null || in.position() > 0);
+        }
+
+        // On a worker: writes the buffered body bytes to the spool file, which it opens
+        // first if need be. Returns true once the whole body is in.
+        boolean spool() throws IOException {
+            if (spool == null) {
+                spool = BodySpooler.forRequest(req);
+                if (req.expectContinue && in.position() == 0) {
+                    try (ChannelOutputStream output = new ChannelOutputStream(channel)) {
+                        output.write("HTTP/1.1 100 CONTINUE\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            }
+
+            in.flip();
+            complete = spool.consume(in);
+            in.compact();
+            if (complete) {
+                body = spool.finish();
+                Metrics.get().time(BODY_PHASE, req.received);
+            }
+            return complete;
+        }
+
+        // Between requests, with nothing of the next one buffered yet
+        boolean idle() {
+            return req == null && in.position() == 0;
+        }
+
+        // Readies the connection for the next request on it
+        void reset() {
+            req = null;
+            spool = null;
+            body = null;
+            complete = false;
+            lastActive = System.currentTimeMillis();
+        }
+
+        void abort() {
+            if (spool != null && body == null)
+                spool.abort();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// One side of a relay session between TCPServer and a UDPServer. Every datagram
+// starts with [type byte][session int], so one UDP socket can carry many transfers.
+//
+// REQUEST: header text from the front end ("filename\r\nPOST\r\nsize\r\nchunkSize\r\n")
+// REPLY:   status text from the storage node ("READY\r\nchunkSize\r\n", "SUCCESS\r\n...")
+// DATA:    [seq int][payload]
+// DATA_DEFLATED: [seq int][zlib-deflated payload], for peers that said they inflate
+// PARITY:  [seq int][n short][k byte][j byte][length xor int][payload xor]: the XOR of
+//          chunks seq, seq + k, ... up to the end of the group of n that seq is j into
+// ACK:     [cumAck int][ackSeq int][bitmap long]
+abstract class RelayChannel {
+    static final byte REQUEST = 1;
+    static final byte REPLY = 2;
+    static final byte DATA = 3;
+    static final byte ACK = 4;
+    static final byte DATA_DEFLATED = 5;
+    static final byte PARITY = 6;
+    // What a PARITY frame carries on top of a DATA frame of the same chunk size
+    static final int PARITY_EXTRA = 8;
+    static final int HEADER_BYTES = 5;
+    // 65507 is the most a UDP datagram can carry over IPv4
+    static final int MAX_CHUNK = 65507 - HEADER_BYTES - ReliableSender.SEQ_BYTES;
+
+    final int session;
+
+    RelayChannel(int session) {
+        this.session = session;
+    }
+
+    // Sends the frame between its position and limit, header included
+    abstract void send(ByteBuffer frame) throws IOException;
+
+    // Next frame of this session, positioned just past the header, or null once
+    // timeoutMs passes without one. Only valid until the next call.
+    abstract ByteBuffer receive(long timeoutMs) throws IOException;
+
+    // The host at the other end, whose congestion state transfers to it share; null
+    // for a channel that does not cross the network
+    InetAddress peer() {
+        return null;
+    }
+
+    // Clears buf and writes the frame header for type into it
+    ByteBuffer startFrame(ByteBuffer buf, byte type) {
+        buf.clear();
+        buf.put(type).putInt(session);
+        return buf;
+    }
+
+    void sendText(byte type, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = startFrame(ByteBuffer.allocate(HEADER_BYTES + bytes.length), type);
+        frame.put(bytes).flip();
+        send(frame);
+    }
+
+    static byte type(ByteBuffer frame) {
+        return frame.get(0);
+    }
+
+    static String text(ByteBuffer frame) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
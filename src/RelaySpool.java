@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+
+// An image on its way from a storage node into a scratch file, readable while it
+// arrives. Each stripe reports how far it is filled in from its own start, and a
+// reader waits for the contiguous prefix of the file to grow, so TCPServer can
+// answer a GET with the bytes already here while the rest is still in flight.
+class RelaySpool implements AutoCloseable {
+    final FileChannel file;
+    final long size;
+    private final long stripeBytes;
+    // Bytes in from the start of each stripe
+    private final long[] filled;
+    private long contiguous;
+    private IOException failure;
+    private volatile boolean closed = false;
+
+    RelaySpool(FileChannel file, long size, long stripeBytes) {
+        this.file = file;
+        this.size = size;
+        this.stripeBytes = stripeBytes;
+        this.filled = new long[(int) Math.max(1, (size + stripeBytes - 1) / stripeBytes)];
+    }
+
+    private long stripeLength(int stripe) {
+        return Math.max(0, Math.min(stripeBytes, size - stripe * stripeBytes));
+    }
+
+    // Stripe has its first bytes in (capped at its length)
+    synchronized void advanced(int stripe, long bytes) {
+        filled[stripe] = Math.min(bytes, stripeLength(stripe));
+        // Every whole stripe from the start, then however far the next one got
+        long prefix = 0;
+        int k = 0;
+        while (k < filled.length && filled[k] == stripeLength(k))
+            prefix += stripeLength(k++);
+        if (k < filled.length)
+            prefix += filled[k];
+        if (prefix > contiguous) {
+            contiguous = prefix;
+            notifyAll();
+        }
+    }
+
+    synchronized void fail(IOException e) {
+        if (failure == null)
+            failure = e;
+        notifyAll();
+    }
+
+    // Waits until more than from bytes at the start of the file are in, and returns
+    // how many are. Throws once a stripe failed and nothing more will come.
+    synchronized long awaitBeyond(long from) throws IOException {
+        try {
+            while (contiguous <= from && failure == null)
+                wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (contiguous > from)
+            return contiguous;
+        throw failure;
+    }
+
+    // Whether the spool was given up on by its reader, so a stripe failing now says nothing about the node
+    boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        file.close();
+    }
+}
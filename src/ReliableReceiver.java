@@ -0,0 +1,224 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Receiving side of ReliableSender. Acknowledges every chunk with the cumulative
+// ACK plus a bitmap of what it holds beyond it. Each chunk is written straight
+// from the receive buffer to its offset in the target file, so out-of-order
+// chunks need no buffering and nothing is copied on the way. A chunk lost from a
+// group the sender sent PARITY for is rebuilt from the parity and the rest of its
+// class, read back from the target, as soon as it is the only one missing.
+class ReliableReceiver {
+    private static final int IDLE_TIMEOUT_MS = 5000;
+    // Repeats of the final ACK, in case the last one is lost on the way back
+    private static final int FINAL_ACKS = 3;
+
+    private final RelayChannel relay;
+
+    private final BitSet received = new BitSet();
+    private final ByteBuffer ack = ByteBuffer.allocateDirect(RelayChannel.HEADER_BYTES + ReliableSender.ACK_BYTES);
+    private int expected = 1;
+    // For DATA_DEFLATED chunks, made on the first one
+    private Inflater inflater;
+    private ByteBuffer inflated;
+    private LongConsumer progress;
+    // PARITY frames whose class still misses more than one chunk, by the class's first
+    // seq, and the group geometry they announced
+    private final Map<Integer, Parity> parity = new HashMap<>();
+    private int fecGroup;
+    private int fecParity;
+    private int lastLength = -1;
+    private ByteBuffer scratch;
+
+    private static final class Parity {
+        final int first;
+        final int end;
+        final int step;
+        final int lengthXor;
+        final ByteBuffer payload;
+
+        Parity(int first, int end, int step, int lengthXor, ByteBuffer payload) {
+            this.first = first;
+            this.end = end;
+            this.step = step;
+            this.lengthXor = lengthXor;
+            this.payload = payload;
+        }
+    }
+
+    ReliableReceiver(RelayChannel relay) {
+        this.relay = relay;
+    }
+
+    // Told the bytes in from the start of the transfer each time that prefix grows;
+    // may overshoot on the last chunk
+    void onProgress(LongConsumer progress) {
+        this.progress = progress;
+    }
+
+    void receive(int numPackets, int chunkSize, FileChannel target) throws IOException {
+        receive(numPackets, chunkSize, target, 0);
+    }
+
+    // Chunk seq lands at offset + (seq - 1) * chunkSize in target
+    void receive(int numPackets, int chunkSize, FileChannel target, long offset) throws IOException {
+        while (expected <= numPackets) {
+            ByteBuffer frame = relay.receive(IDLE_TIMEOUT_MS);
+            if (frame == null)
+                throw new IOException("Sender went quiet at packet " + expected);
+            byte type = RelayChannel.type(frame);
+            if (type == RelayChannel.PARITY) {
+                onParity(frame, numPackets, chunkSize, target, offset);
+                continue;
+            }
+            if (type != RelayChannel.DATA && type != RelayChannel.DATA_DEFLATED
+                    || frame.remaining() < ReliableSender.SEQ_BYTES)
+                continue;
+
+            int seqNum = frame.getInt();
+            if (seqNum < 1 || seqNum > numPackets || frame.remaining() > chunkSize)
+                continue;
+
+            if (!received.get(seqNum)) {
+                if (type == RelayChannel.DATA_DEFLATED && (frame = inflate(frame, chunkSize)) == null)
+                    continue;
+                store(seqNum, frame, numPackets, chunkSize, target, offset);
+            }
+            else {
+                Metrics.get().count("relay_duplicate_chunks_total");
+            }
+
+            // Duplicates are acknowledged again, their earlier ACK may have been lost
+            sendAck(seqNum);
+
+            // The chunk may leave its class one short of what its parity can rebuild
+            if (fecGroup > 0) {
+                int groupFirst = (seqNum - 1) / fecGroup * fecGroup + 1;
+                int first = groupFirst + (seqNum - groupFirst) % fecParity;
+                Parity p = parity.get(first);
+                if (p != null && rebuild(p, numPackets, chunkSize, target, offset))
+                    parity.remove(first);
+            }
+        }
+
+        for (int i = 1; i < FINAL_ACKS; i++)
+            sendAck(numPackets);
+    }
+
+    private void store(int seqNum, ByteBuffer chunk, int numPackets, int chunkSize, FileChannel target,
+                       long offset) throws IOException {
+        if (seqNum == numPackets)
+            lastLength = chunk.remaining();
+        long position = offset + (long) (seqNum - 1) * chunkSize;
+        while (chunk.hasRemaining())
+            position += target.write(chunk, position);
+        received.set(seqNum);
+        int before = expected;
+        while (received.get(expected))
+            expected++;
+        if (expected != before && progress != null)
+            progress.accept((long) (expected - 1) * chunkSize);
+    }
+
+    private void onParity(ByteBuffer frame, int numPackets, int chunkSize, FileChannel target, long offset)
+            throws IOException {
+        if (frame.remaining() < ReliableSender.SEQ_BYTES + RelayChannel.PARITY_EXTRA)
+            return;
+        int first = frame.getInt();
+        int group = frame.getShort() & 0xffff;
+        int step = frame.get() & 0xff;
+        int j = frame.get() & 0xff;
+        int lengthXor = frame.getInt();
+        if (first < 1 || first > numPackets || group < 1 || step < 1 || j >= step || frame.remaining() > chunkSize)
+            return;
+        fecGroup = group;
+        fecParity = step;
+
+        ByteBuffer payload = ByteBuffer.allocate(frame.remaining()).put(frame).flip();
+        Parity p = new Parity(first, Math.min(first - j + group - 1, numPackets), step, lengthXor, payload);
+        if (!rebuild(p, numPackets, chunkSize, target, offset))
+            parity.put(first, p);
+    }
+
+    // Rebuilds the one chunk p's class is missing. True once the class is whole, and
+    // false while more than one of its chunks is still to come.
+    private boolean rebuild(Parity p, int numPackets, int chunkSize, FileChannel target, long offset)
+            throws IOException {
+        int lost = -1;
+        for (int seq = p.first; seq <= p.end; seq += p.step) {
+            if (!received.get(seq)) {
+                if (lost != -1)
+                    return false;
+                lost = seq;
+            }
+        }
+        if (lost == -1)
+            return true;
+
+        if (scratch == null || scratch.capacity() < chunkSize)
+            scratch = ByteBuffer.allocateDirect(chunkSize);
+        ByteBuffer acc = p.payload;
+        int length = p.lengthXor;
+        for (int seq = p.first; seq <= p.end; seq += p.step) {
+            if (seq == lost)
+                continue;
+            int len = seq == numPackets ? lastLength : chunkSize;
+            if (len > acc.capacity())
+                return true;
+            scratch.clear().limit(len);
+            long position = offset + (long) (seq - 1) * chunkSize;
+            while (scratch.hasRemaining()) {
+                if (target.read(scratch, position + scratch.position()) == -1)
+                    return true;
+            }
+            ReliableSender.xor(acc, acc.capacity(), scratch.flip());
+            length ^= len;
+        }
+        // Lengths that do not add up mean a damaged frame; the chunk will be resent
+        if (length < 0 || length > acc.capacity() || (lost != numPackets && length != chunkSize))
+            return true;
+
+        store(lost, acc.position(0).limit(length), numPackets, chunkSize, target, offset);
+        Metrics.get().count("relay_chunks_rebuilt_total");
+        sendAck(lost);
+        return true;
+    }
+
+    // The chunk a DATA_DEFLATED frame carries, or null when it does not inflate to at
+    // most chunkSize bytes; such a frame is dropped like a lost one and sent again
+    private ByteBuffer inflate(ByteBuffer frame, int chunkSize) {
+        // One byte to spare, so a full chunk ends without running out of room first
+        if (inflater == null || inflated.capacity() <= chunkSize) {
+            inflater = new Inflater();
+            inflated = ByteBuffer.allocateDirect(chunkSize + 1);
+        }
+        inflater.reset();
+        inflater.setInput(frame);
+        inflated.clear().limit(chunkSize + 1);
+        try {
+            while (!inflater.finished() && inflated.hasRemaining()) {
+                if (inflater.inflate(inflated) == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    return null;
+            }
+        }
+        catch (DataFormatException e) {
+            return null;
+        }
+        return inflater.finished() && inflated.position() <= chunkSize ? inflated.flip() : null;
+    }
+
+    private void sendAck(int seqNum) throws IOException {
+        long bitmap = 0;
+        for (int i = received.nextSetBit(expected + 1); i >= 0 && i < expected + 64; i = received.nextSetBit(i + 1))
+            bitmap |= 1L << (i - expected);
+        relay.startFrame(ack, RelayChannel.ACK).putInt(expected - 1).putInt(seqNum).putLong(bitmap);
+        ack.flip();
+        relay.send(ack);
+    }
+}
@@ -0,0 +1,352 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+
+// Selective-repeat sender for the image relay. Keeps up to WINDOW sequenced chunks
+// of a file in flight, retires them from the receiver's cumulative + selective ACKs,
+// and retransmits on an RTO derived from measured round trips (RFC 6298). New chunks
+// also wait for room in the congestion window shared with every other transfer to
+// the same host, and every datagram for its turn in that host's pacing.
+// Sequence numbers start at 1; bit i of an ACK's bitmap means cumAck + 1 + i has arrived.
+class ReliableSender {
+    static final int SEQ_BYTES = 4;
+    static final int ACK_BYTES = 16;
+
+    private static final int WINDOW = Integer.getInteger("relay.window", 64);
+    // Caps the bytes in flight too, so large chunks do not overrun socket buffers
+    private static final int WINDOW_BYTES = Integer.getInteger("relay.windowBytes", 1 << 20);
+    private static final long MIN_RTO_NS = Long.getLong("relay.minRtoMs", 10) * 1_000_000;
+    private static final long MAX_RTO_NS = 2000 * 1_000_000L;
+    private static final long INITIAL_RTO_NS = 200 * 1_000_000L;
+    private static final int MAX_TIMEOUTS = 10;
+    // Resend a missing chunk once this many later chunks have been SACKed
+    private static final int DUP_THRESHOLD = 3;
+    private static final int STATUS_TIMEOUT_MS = 5000;
+    private static final String TIMEOUT_RESENDS = Metrics.series("relay_retransmits_total", "cause", "timeout");
+    private static final String FAST_RESENDS = Metrics.series("relay_retransmits_total", "cause", "fast");
+    // Chunks in a row that did not shrink before deflating is given up for the transfer
+    private static final int INCOMPRESSIBLE_RUN = 8;
+
+    private final RelayChannel relay;
+    private final Source source;
+    private final long offset;
+    private final long length;
+    private final int chunkSize;
+    private final int numPackets;
+    private final int window;
+
+    // State of each chunk in the window, indexed by seq % WINDOW
+    private final long[] sentAt = new long[WINDOW];
+    private final int[] sends = new int[WINDOW];
+    private final boolean[] acked = new boolean[WINDOW];
+    private final boolean[] fastResent = new boolean[WINDOW];
+
+    private final ByteBuffer chunkBuf;
+    private final Metrics metrics = Metrics.get();
+    private final CongestionControl cc;
+    // Window this transfer holds in cc, a chunkSize for each chunk sent and not yet acknowledged
+    private long inFlight;
+    // Set by deflateChunks(): the compressor and the frame it writes into
+    private Deflater deflater;
+    private ByteBuffer deflatedBuf;
+    private int incompressible;
+    // Set by parity(): every group of fecGroup chunks is followed by fecParity PARITY
+    // frames, the j-th the XOR of the group's chunks j, j + fecParity, ...
+    private int fecGroup;
+    private int fecParity;
+    private ByteBuffer[] parity;
+    private int[] parityLength;
+    private int[] lengthXor;
+    private ByteBuffer parityBuf;
+
+    private long srtt = -1;
+    private long rttvar;
+    private long rto = INITIAL_RTO_NS;
+
+    // Where the chunks are read from: a file, or anything that can be read like one
+    // at a position, such as the blocks of an image spread over the chunk store
+    interface Source {
+        // Same contract as FileChannel.read(ByteBuffer, long)
+        int read(ByteBuffer dst, long position) throws IOException;
+    }
+
+    ReliableSender(RelayChannel relay, FileChannel source, int chunkSize) throws IOException {
+        this(relay, source::read, 0, source.size(), chunkSize);
+    }
+
+    // Sends only length bytes of source from offset on, as one stripe of a larger transfer;
+    // chunk seq still starts at 1 and covers offset + (seq - 1) * chunkSize
+    ReliableSender(RelayChannel relay, Source source, long offset, long length, int chunkSize) {
+        this.relay = relay;
+        this.source = source;
+        this.offset = offset;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.numPackets = (int) Math.ceil(length / (double) chunkSize);
+        this.window = Math.max(1, Math.min(WINDOW, WINDOW_BYTES / chunkSize));
+        this.cc = CongestionControl.forPeer(relay.peer());
+        // The file is read straight in behind the frame header, so each chunk is one
+        // direct buffer from disk to socket with no copy through the heap
+        chunkBuf = ByteBuffer.allocateDirect(RelayChannel.HEADER_BYTES + SEQ_BYTES + chunkSize);
+    }
+
+    int numPackets() {
+        return numPackets;
+    }
+
+    // Adds parity PARITY frames to every group of group chunks, so the receiver can
+    // rebuild up to parity lost chunks of a group (one per class) without a resend.
+    // Only for chunks that leave room for the larger PARITY frame.
+    void parity(int group, int parity) {
+        if (group < 1 || group > 0xffff || parity < 1 || parity > Math.min(group, 0xff)
+                || chunkSize > RelayChannel.MAX_CHUNK - RelayChannel.PARITY_EXTRA)
+            return;
+        fecGroup = group;
+        fecParity = parity;
+        this.parity = new ByteBuffer[parity];
+        for (int j = 0; j < parity; j++)
+            this.parity[j] = ByteBuffer.allocateDirect(chunkSize);
+        parityLength = new int[parity];
+        lengthXor = new int[parity];
+        parityBuf = ByteBuffer.allocateDirect(chunkBuf.capacity() + RelayChannel.PARITY_EXTRA);
+    }
+
+    // Sends each chunk that deflates by at least an eighth as DATA_DEFLATED instead;
+    // only for a receiver that said it inflates
+    void deflateChunks() {
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        deflatedBuf = ByteBuffer.allocateDirect(chunkBuf.capacity());
+    }
+
+    // Sends every chunk and waits until each one is acknowledged. Returns the reply
+    // the peer sent once it had everything if that overtook our last ACKs, else null.
+    String send() throws IOException {
+        try {
+            return sendAll();
+        }
+        finally {
+            // Whatever is still unacknowledged no longer counts against the others
+            cc.release(inFlight);
+            inFlight = 0;
+        }
+    }
+
+    private String sendAll() throws IOException {
+        int base = 1;
+        int next = 1;
+        int highestAcked = 0;
+        int timeouts = 0;
+
+        while (base <= numPackets) {
+            while (next < base + window && next <= numPackets && cc.tryAcquire(chunkSize, inFlight == 0)) {
+                inFlight += chunkSize;
+                int slot = next % WINDOW;
+                sends[slot] = 0;
+                acked[slot] = false;
+                fastResent[slot] = false;
+                transmit(next);
+                if (fecGroup > 0)
+                    addParity(next);
+                next++;
+            }
+
+            long now = System.nanoTime();
+            long deadline = Long.MAX_VALUE;
+            for (int seq = base; seq < next; seq++) {
+                if (!acked[seq % WINDOW])
+                    deadline = Math.min(deadline, sentAt[seq % WINDOW] + rto);
+            }
+            ByteBuffer reply = relay.receive(Math.max(1, (deadline - now) / 1_000_000));
+            if (reply == null) {
+                if (++timeouts > MAX_TIMEOUTS)
+                    throw new IOException("Receiver stopped acknowledging at packet " + base);
+
+                // Resend everything whose timer ran out, then back off
+                cc.onTimeout();
+                now = System.nanoTime();
+                for (int seq = base; seq < next; seq++) {
+                    if (!acked[seq % WINDOW] && now - sentAt[seq % WINDOW] >= rto) {
+                        metrics.count(TIMEOUT_RESENDS);
+                        transmit(seq);
+                    }
+                }
+                rto = Math.min(rto * 2, MAX_RTO_NS);
+                continue;
+            }
+
+            if (RelayChannel.type(reply) == RelayChannel.REPLY) {
+                String status = firstLine(reply);
+                if (isFinal(status))
+                    return status;
+                continue;
+            }
+            if (RelayChannel.type(reply) != RelayChannel.ACK || reply.remaining() < ACK_BYTES)
+                continue;
+
+            int cumAck = reply.getInt();
+            int ackSeq = reply.getInt();
+            long bitmap = reply.getLong();
+
+            // Karn: only chunks sent exactly once give a usable RTT sample
+            if (ackSeq >= base && ackSeq < next && !acked[ackSeq % WINDOW] && sends[ackSeq % WINDOW] == 1)
+                sampleRtt(System.nanoTime() - sentAt[ackSeq % WINDOW]);
+
+            boolean retired = false;
+            for (int seq = base; seq < next; seq++) {
+                int offset = seq - cumAck - 1;
+                boolean arrived = seq <= cumAck || seq == ackSeq
+                        || (offset < 64 && (bitmap >>> offset & 1) != 0);
+                if (arrived && !acked[seq % WINDOW]) {
+                    acked[seq % WINDOW] = true;
+                    cc.onAck(chunkSize);
+                    inFlight -= chunkSize;
+                    metrics.add("relay_acked_bytes_total", Math.min(chunkSize, length - (long) (seq - 1) * chunkSize));
+                    highestAcked = Math.max(highestAcked, seq);
+                    timeouts = 0;
+                    retired = true;
+                }
+            }
+            // An ACK that retires nothing: a repeat, or one for a chunk we sent twice
+            if (!retired)
+                metrics.count("relay_duplicate_acks_total");
+
+            while (base < next && acked[base % WINDOW])
+                base++;
+
+            // With parity on, a gap is left for the group's parity to fill before it is resent
+            for (int seq = base; lastOfGroup(seq) + DUP_THRESHOLD <= highestAcked; seq++) {
+                int slot = seq % WINDOW;
+                if (!acked[slot] && !fastResent[slot]) {
+                    fastResent[slot] = true;
+                    metrics.count(FAST_RESENDS);
+                    cc.onLoss();
+                    transmit(seq);
+                }
+            }
+        }
+        return null;
+    }
+
+    // Waits for the peer's final SUCCESS/FAILURE line, skipping stray ACKs
+    String awaitStatus() throws IOException {
+        while (true) {
+            ByteBuffer reply = relay.receive(STATUS_TIMEOUT_MS);
+            if (reply == null)
+                throw new IOException("No status from the receiver");
+            if (RelayChannel.type(reply) == RelayChannel.REPLY) {
+                String status = firstLine(reply);
+                if (isFinal(status))
+                    return status;
+            }
+        }
+    }
+
+    // A node answers every repeat of a request with its last reply, so a READY for
+    // one that crossed ours on the way can still come in once the chunks are flowing
+    private static boolean isFinal(String status) {
+        return status.equals("SUCCESS") || status.equals("FAILURE");
+    }
+
+    // Reads the chunk back from the file on every (re)transmission, so nothing
+    // but the window bookkeeping is kept per chunk
+    private void transmit(int seq) throws IOException {
+        long position = (long) (seq - 1) * chunkSize;
+        relay.startFrame(chunkBuf, RelayChannel.DATA).putInt(seq);
+        int payloadStart = chunkBuf.position();
+        chunkBuf.limit(payloadStart + (int) Math.min(chunkSize, length - position));
+        while (chunkBuf.hasRemaining()) {
+            if (source.read(chunkBuf, offset + position + chunkBuf.position() - payloadStart) == -1)
+                throw new IOException("File shrank while sending");
+        }
+        chunkBuf.flip();
+        ByteBuffer frame = deflater != null && incompressible < INCOMPRESSIBLE_RUN ? deflate(seq) : chunkBuf;
+        cc.pace(frame.remaining());
+        relay.send(frame);
+
+        sentAt[seq % WINDOW] = System.nanoTime();
+        sends[seq % WINDOW]++;
+    }
+
+    private int lastOfGroup(int seq) {
+        return fecGroup == 0 ? seq : ((seq - 1) / fecGroup + 1) * fecGroup;
+    }
+
+    // Folds the chunk just sent (still in chunkBuf) into its class's parity, and sends
+    // the group's parity once its last chunk is out
+    private void addParity(int seq) throws IOException {
+        int first = (seq - 1) / fecGroup * fecGroup + 1;
+        int j = (seq - first) % fecParity;
+        ByteBuffer payload = chunkBuf.duplicate().position(RelayChannel.HEADER_BYTES + SEQ_BYTES);
+        int length = payload.remaining();
+        xor(parity[j], seq - first < fecParity ? 0 : parityLength[j], payload);
+        parityLength[j] = Math.max(parityLength[j], length);
+        lengthXor[j] ^= length;
+
+        if (seq != first + fecGroup - 1 && seq != numPackets)
+            return;
+        for (j = 0; j < fecParity && first + j <= seq; j++) {
+            relay.startFrame(parityBuf, RelayChannel.PARITY).putInt(first + j)
+                    .putShort((short) fecGroup).put((byte) fecParity).put((byte) j).putInt(lengthXor[j]);
+            parityBuf.put(parity[j].duplicate().position(0).limit(parityLength[j])).flip();
+            cc.pace(parityBuf.remaining());
+            relay.send(parityBuf);
+            metrics.count("relay_parity_sent_total");
+            parityLength[j] = 0;
+            lengthXor[j] = 0;
+        }
+    }
+
+    // XORs src into the first length bytes of acc and copies the rest of it in after them
+    static void xor(ByteBuffer acc, int length, ByteBuffer src) {
+        int n = src.remaining();
+        int both = Math.min(length, n);
+        int p = src.position();
+        int i = 0;
+        for (; i + 8 <= both; i += 8)
+            acc.putLong(i, acc.getLong(i) ^ src.getLong(p + i));
+        for (; i < both; i++)
+            acc.put(i, (byte) (acc.get(i) ^ src.get(p + i)));
+        if (both < n)
+            acc.duplicate().position(both).put(src.duplicate().position(p + both));
+    }
+
+    // The deflated frame for the chunk in chunkBuf, or chunkBuf itself when it does not shrink enough
+    private ByteBuffer deflate(int seq) {
+        ByteBuffer payload = chunkBuf.duplicate().position(RelayChannel.HEADER_BYTES + SEQ_BYTES);
+        int raw = payload.remaining();
+        relay.startFrame(deflatedBuf, RelayChannel.DATA_DEFLATED).putInt(seq);
+        deflatedBuf.limit(deflatedBuf.position() + raw - raw / 8);
+        deflater.reset();
+        deflater.setInput(payload);
+        deflater.finish();
+        while (!deflater.finished() && deflatedBuf.hasRemaining())
+            deflater.deflate(deflatedBuf);
+        if (!deflater.finished()) {
+            incompressible++;
+            return chunkBuf;
+        }
+        incompressible = 0;
+        metrics.add("relay_deflate_saved_bytes_total", raw - (deflatedBuf.position() - RelayChannel.HEADER_BYTES - SEQ_BYTES));
+        return deflatedBuf.flip();
+    }
+
+    private void sampleRtt(long rtt) {
+        cc.onRtt(rtt);
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        }
+        else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+        rto = Math.max(MIN_RTO_NS, Math.min(srtt + 4 * rttvar, MAX_RTO_NS));
+    }
+
+    static String firstLine(ByteBuffer frame) {
+        String text = RelayChannel.text(frame);
+        int eol = text.indexOf("\r\n");
+        return eol == -1 ? text : text.substring(0, eol);
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.List;
+
+// Uploads sent in pieces, each a PUT (or PATCH) with "Content-Range: bytes
+// first-last/total", so a client on a flaky link only resends the pieces that did
+// not get through. Pieces are written into a partial file under DIR, and a bitmap
+// of the BLOCK_BYTES blocks that are in is kept next to it; both are durable before
+// a piece is acknowledged, so an upload also outlives a restart. "bytes */total"
+// with an empty body asks how far an upload got. Pieces may come in any order but
+// must start on a block boundary and end on one or at the end of the file.
+//
+// An upload is known by its name and total size, so two clients sending files of
+// different sizes under one name do not write into each other's.
+class ResumableUploads {
+    private static final Path DIR = Paths.get(System.getProperty("http.uploadDir", ".uploads"));
+    private static final int BLOCK_BYTES = Integer.getInteger("http.resumeBlockBytes", 256 * 1024);
+    // Partial uploads left alone this long are deleted when the server starts
+    private static final long TTL_MS = Long.getLong("http.uploadTtlMs", 24 * 60 * 60 * 1000L);
+    // Largest file taken in pieces. The total comes from the client and sizes the
+    // bitmap, so a bigger one is turned away before anything is allocated for it.
+    private static final long MAX_BYTES = Math.min(Long.getLong("http.maxUploadBytes", 4L << 30),
+            (long) Integer.MAX_VALUE * BLOCK_BYTES);
+
+    private final GroupCommit commits;
+    // Pieces of one upload are written one at a time; those of most others do not wait on them
+    private final Object[] locks = new Object[64];
+
+    // Where an upload stands after a piece
+    static final class Progress {
+        // Bytes in from the start of the file, all of them once it is complete
+        final long prefix;
+        // The whole file, once every piece is in; the caller takes it from there
+        final Path complete;
+
+        Progress(long prefix, Path complete) {
+            this.prefix = prefix;
+            this.complete = complete;
+        }
+    }
+
+    ResumableUploads(GroupCommit commits) {
+        this.commits = commits;
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+        // Temp files of pieces cut off by a crash, and uploads nobody came back for
+        long now = System.currentTimeMillis();
+        try {
+            Files.createDirectories(DIR);
+            try (DirectoryStream<Path> found = Files.newDirectoryStream(DIR)) {
+                for (Path file : found) {
+                    if (file.getFileName().toString().startsWith(".")
+                            || now - Files.getLastModifiedTime(file).toMillis() > TTL_MS)
+                        Files.delete(file);
+                }
+            }
+        }
+        catch (IOException ioe) {
+            // Each piece then fails on its own and says why
+            System.out.println(ioe.getMessage());
+        }
+    }
+
+    // "bytes first-last/total" or "bytes */total" as {first, last, total}, with first
+    // and last -1 for the second; null when it is neither, not a valid piece, or of a
+    // file over MAX_BYTES
+    static long[] parse(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes "))
+            return null;
+        String spec = contentRange.substring(6).trim();
+        int slash = spec.indexOf('/');
+        int dash = spec.indexOf('-');
+        if (slash == -1)
+            return null;
+        try {
+            long total = Long.parseLong(spec.substring(slash + 1).trim());
+            if (total <= 0 || total > MAX_BYTES)
+                return null;
+            if (spec.substring(0, slash).trim().equals("*"))
+                return new long[] {-1, -1, total};
+            if (dash == -1 || dash > slash)
+                return null;
+            long first = Long.parseLong(spec.substring(0, dash).trim());
+            long last = Long.parseLong(spec.substring(dash + 1, slash).trim());
+            boolean aligned = first % BLOCK_BYTES == 0 && ((last + 1) % BLOCK_BYTES == 0 || last + 1 == total);
+            return first >= 0 && first <= last && last < total && aligned ? new long[] {first, last, total} : null;
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Writes the piece of name in body, which must hold exactly the bytes of range (and
+    // none to only ask), and returns where the upload stands
+    Progress write(String name, long[] range, Path body) throws IOException {
+        long total = range[2];
+        String id = id(name, total);
+        Path part = DIR.resolve(id + ".part");
+        Path bitmap = DIR.resolve(id + ".bitmap");
+        int blocks = ChunkStore.blocks(total, BLOCK_BYTES);
+
+        synchronized (lock(id)) {
+            BitSet in = read(bitmap, total);
+            if (in == null) {
+                in = new BitSet(blocks);
+                Files.deleteIfExists(part);
+            }
+
+            if (range[0] >= 0) {
+                try (FileChannel from = FileChannel.open(body, StandardOpenOption.READ);
+                     FileChannel to = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    // Written through to's position, as a piece may start past the end of the file so far
+                    to.position(range[0]);
+                    long done = 0;
+                    while (done < from.size())
+                        done += from.transferTo(done, from.size() - done, to);
+                }
+                in.set((int) (range[0] / BLOCK_BYTES), (int) (range[1] / BLOCK_BYTES) + 1);
+                Metrics.get().add("http_resumable_bytes_total", range[1] - range[0] + 1);
+
+                // The piece and the bitmap that says it is in become durable together
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (DataOutputStream out = new DataOutputStream(bytes)) {
+                    out.writeUTF(name);
+                    out.writeLong(total);
+                    out.writeInt(BLOCK_BYTES);
+                    out.write(in.toByteArray());
+                }
+                Path tmp = Files.createTempFile(DIR, ".bitmap-", ".tmp");
+                try {
+                    Files.write(tmp, bytes.toByteArray());
+                    commits.commit(List.of(part, tmp), tmp, bitmap, range[1] - range[0] + 1);
+                }
+                finally {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+
+            int prefix = in.nextClearBit(0);
+            if (prefix < blocks)
+                return new Progress((long) prefix * BLOCK_BYTES, null);
+            return new Progress(total, part);
+        }
+    }
+
+    // The upload of name was taken into place; forget it
+    void finish(String name, long total) throws IOException {
+        String id = id(name, total);
+        synchronized (lock(id)) {
+            Files.deleteIfExists(DIR.resolve(id + ".part"));
+            Files.deleteIfExists(DIR.resolve(id + ".bitmap"));
+        }
+    }
+
+    private static String id(String name, long total) {
+        return ChunkStore.hex(ChunkStore.hash(ByteBuffer.wrap((name + "\n" + total).getBytes(StandardCharsets.UTF_8))));
+    }
+
+    private Object lock(String id) {
+        return locks[Math.floorMod(id.hashCode(), locks.length)];
+    }
+
+    // The blocks in so far, or null when there is no such upload (or one cut into
+    // blocks of another size, before a restart)
+    private static BitSet read(Path bitmap, long total) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(bitmap))) {
+            in.readUTF();
+            if (in.readLong() != total || in.readInt() != BLOCK_BYTES)
+                return null;
+            return BitSet.valueOf(in.readAllBytes());
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.PortUnreachableException;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Front-end side of a relay session: a private channel connected to one UDPServer
+// under a fresh random session id. Datagrams from anyone else never reach us.
+class SocketRelayChannel extends RelayChannel implements Closeable {
+    private static final int MAX_DATAGRAM = 64 * 1024;
+    private static final int SOCKET_BUFFER = 1 << 20;
+    private static final long REQUEST_RETRY_MS = 250;
+    private static final int DEFAULT_MTU = 1500;
+    private static final AtomicInteger OPEN = new AtomicInteger();
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final InetAddress peer;
+    // Every frame is received into this one buffer, so a transfer allocates nothing per datagram
+    private final ByteBuffer receiveBuf = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+
+    SocketRelayChannel(InetAddress peer, int port) throws IOException {
+        super(ThreadLocalRandom.current().nextInt());
+        this.peer = peer;
+        channel = DatagramChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+            // Connecting picks the local address, and with it the interface, we send from
+            channel.connect(new InetSocketAddress(peer, port));
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        OPEN.incrementAndGet();
+    }
+
+    @Override
+    InetAddress peer() {
+        return peer;
+    }
+
+    // Relay sessions this front end has open right now
+    static long openCount() {
+        return OPEN.get();
+    }
+
+    // Largest chunk that fits one datagram on the interface we send from, so IP never
+    // has to fragment it: about 1.4 KB on Ethernet, 9 KB with jumbo frames and the
+    // full 64 KB datagram over loopback. Java cannot see the path MTU, only the local
+    // link's, which is what decides on a LAN.
+    int pathChunkSize() {
+        int mtu = DEFAULT_MTU;
+        try {
+            InetAddress local = ((InetSocketAddress) channel.getLocalAddress()).getAddress();
+            NetworkInterface nif = NetworkInterface.getByInetAddress(local);
+            if (nif != null && nif.getMTU() > 0)
+                mtu = nif.getMTU();
+        }
+        catch (IOException ignored) { }
+
+        int ipAndUdpHeaders = peer instanceof Inet6Address ? 40 + 8 : 20 + 8;
+        return Math.min(MAX_CHUNK, mtu - ipAndUdpHeaders - HEADER_BYTES - ReliableSender.SEQ_BYTES);
+    }
+
+    // Sends the request header and returns the storage node's reply, repeating the
+    // request until it is answered, since a lost header would strand the session
+    String request(String header, long timeoutMs) throws IOException {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000;
+        while (System.nanoTime() < deadline) {
+            sendText(REQUEST, header);
+            long wait = Math.min(REQUEST_RETRY_MS, (deadline - System.nanoTime()) / 1_000_000);
+            long until = System.nanoTime() + wait * 1_000_000;
+            ByteBuffer frame;
+            while ((frame = receive(Math.max(1, (until - System.nanoTime()) / 1_000_000))) != null) {
+                if (type(frame) == REPLY)
+                    return text(frame);
+            }
+        }
+        throw new IOException("UDP server did not answer");
+    }
+
+    @Override
+    void send(ByteBuffer frame) throws IOException {
+        // A full send buffer drops the datagram, which the window recovers like any loss
+        try {
+            channel.write(frame);
+        }
+        catch (PortUnreachableException ignored) { }
+    }
+
+    @Override
+    ByteBuffer receive(long timeoutMs) throws IOException {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000;
+        while (true) {
+            receiveBuf.clear();
+            int n;
+            try {
+                n = channel.read(receiveBuf);
+            }
+            catch (PortUnreachableException e) {
+                // The ICMP error for an earlier datagram; the peer may be restarting
+                n = 0;
+            }
+
+            if (n >= HEADER_BYTES && receiveBuf.getInt(1) == session) {
+                receiveBuf.flip().position(HEADER_BYTES);
+                return receiveBuf;
+            }
+            if (n > 0)
+                continue;
+
+            long left = deadline - System.nanoTime();
+            if (left <= 0)
+                return null;
+            selector.select(Math.max(1, left / 1_000_000));
+            selector.selectedKeys().clear();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        OPEN.decrementAndGet();
+        try {
+            selector.close();
+        }
+        finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// The UDP storage nodes behind TCPServer, placed on a consistent-hash ring with
+// VNODES points each, so adding or removing a node only moves ~1/n of the files.
+// Each image is written to the first REPLICAS healthy nodes clockwise from its name
+// and read from the first healthy one that has it; a background ping marks nodes up
+// or down.
+class StorageCluster {
+    static final int DEFAULT_PORT = 41000;
+
+    private static final int VNODES = Integer.getInteger("ring.vnodes", 128);
+    private static final int REPLICAS = Integer.getInteger("relay.replicas", 1);
+    private static final long HEALTH_INTERVAL_MS = Long.getLong("ring.healthMs", 2000);
+    private static final long HEALTH_TIMEOUT_MS = 1000;
+
+    private final List<Node> nodes = new ArrayList<>();
+    private final TreeMap<Long, Node> ring = new TreeMap<>();
+    private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "storage-health");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static final class Node {
+        final InetAddress address;
+        final int port;
+        volatile boolean healthy = true;
+
+        Node(InetAddress address, int port) {
+            this.address = address;
+            this.port = port;
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostAddress() + ":" + port;
+        }
+    }
+
+    // Each spec is host or host:port
+    StorageCluster(String[] specs) throws IOException {
+        for (String spec : specs) {
+            int colon = spec.lastIndexOf(':');
+            String host = colon == -1 ? spec : spec.substring(0, colon);
+            int port = colon == -1 ? DEFAULT_PORT : Integer.parseInt(spec.substring(colon + 1));
+            Node node = new Node(InetAddress.getByName(host), port);
+            nodes.add(node);
+            for (int v = 0; v < VNODES; v++)
+                ring.put(hash(node + "#" + v), node);
+            Metrics.get().gauge(Metrics.series("relay_node_up", "node", node.toString()),
+                    () -> node.healthy ? 1 : 0);
+        }
+        if (nodes.isEmpty())
+            throw new IllegalArgumentException("No UDP storage nodes given");
+    }
+
+    void startHealthChecks() {
+        checker.scheduleWithFixedDelay(this::checkAll, 0, HEALTH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Every node once, clockwise from filename's point on the ring
+    List<Node> preference(String filename) {
+        List<Node> order = new ArrayList<>(nodes.size());
+        Long start = ring.ceilingKey(hash(filename));
+        for (Map<Long, Node> part : List.of(start == null ? ring : ring.tailMap(start), ring)) {
+            for (Node node : part.values()) {
+                if (!order.contains(node))
+                    order.add(node);
+                if (order.size() == nodes.size())
+                    return order;
+            }
+        }
+        return order;
+    }
+
+    // Where a POST of filename goes: the first REPLICAS healthy nodes
+    List<Node> writeTargets(String filename) {
+        List<Node> targets = new ArrayList<>(REPLICAS);
+        for (Node node : preference(filename)) {
+            if (node.healthy && targets.size() < REPLICAS)
+                targets.add(node);
+        }
+        return targets;
+    }
+
+    // Where a GET of filename looks, in order: every healthy node, those a POST would
+    // pick first. A node that was down for the POST may be back without the image, so
+    // a read falls through to the next until one has it.
+    List<Node> readTargets(String filename) {
+        List<Node> targets = new ArrayList<>(nodes.size());
+        for (Node node : preference(filename)) {
+            if (node.healthy)
+                targets.add(node);
+        }
+        return targets;
+    }
+
+    // A relay to node failed; stop sending it work until a ping gets through
+    void suspect(Node node) {
+        if (node.healthy)
+            System.out.println("Storage node " + node + " is down");
+        node.healthy = false;
+    }
+
+    private void checkAll() {
+        for (Node node : nodes) {
+            boolean up;
+            try (SocketRelayChannel ping = new SocketRelayChannel(node.address, node.port)) {
+                up = ping.request("-\r\nPING\r\n", HEALTH_TIMEOUT_MS).startsWith("PONG");
+            }
+            catch (IOException e) {
+                up = false;
+            }
+            if (up && !node.healthy)
+                System.out.println("Storage node " + node + " is up");
+            else if (!up && node.healthy)
+                System.out.println("Storage node " + node + " is down");
+            node.healthy = up;
+        }
+    }
+
+    // First 8 bytes of the MD5 of s, as ketama does
+    private static long hash(String s) {
+        try {
+            byte[] d = MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++)
+                h = h << 8 | (d[i] & 0xff);
+            return h;
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
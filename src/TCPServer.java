@@ -1,397 +1,934 @@
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // The TCP Server to receive files
 public class TCPServer {
-    private final int PORT = 40000;
-    private final int BUFFER_SIZE = 1024;
-    private final int SEQ_BYTES = 4;
+    private final int PORT = Integer.getInteger("tcp.port", 40000);
+    // Relay payload per datagram; 0 sizes it to the MTU of the interface the UDP server is reached by
+    private final int CHUNK_SIZE = Integer.getInteger("relay.chunkSize", 0);
+    private final int UDP_REPLY_TIMEOUT_MS = 5000;
+    private final int READ_BUFFER_SIZE = 16 * 1024;
+    final int MAX_CONNECTIONS = Integer.getInteger("tcp.maxConnections", 256);
+    private final int DRAIN_SECONDS = Integer.getInteger("tcp.drainSeconds", 30);
+    // How long a kept-alive connection may sit between requests, and how long a
+    // client may stall in the middle of one
+    final int KEEP_ALIVE_MS = Integer.getInteger("tcp.keepAliveMs", 5000);
+    final int READ_TIMEOUT_MS = Integer.getInteger("tcp.readTimeoutMs", 30_000);
+    private final int MAX_REQUESTS = Integer.getInteger("tcp.maxRequests", 100);
+
+    // Images relayed from the UDP server, so hot ones skip the round trip; 0 turns it off
+    private final ImageCache imageCache = new ImageCache(Long.getLong("cache.maxBytes", 64L << 20));
+    // Text POSTs are answered once they are on disk; see GroupCommit
+    private final GroupCommit commits = new GroupCommit("http");
+    // PUTs and PATCHes sent in pieces, kept until the last one is in
+    private final ResumableUploads uploads = new ResumableUploads(commits);
+
+    // "blocking" serves each socket on its own thread, "nio" multiplexes them on event loops
+    private final String ENGINE = System.getProperty("tcp.engine", "blocking");
+    private final int EVENT_LOOPS = Integer.getInteger("tcp.eventLoops",
+            Runtime.getRuntime().availableProcessors());
+
+    private volatile boolean running = true;
+    private final Metrics metrics = Metrics.get();
+    // The UDP storage nodes, one per command-line argument (host or host:port)
+    private StorageCluster cluster;
+    // Runs replica uploads and the extra stripes of large transfers
+    private final ExecutorService relayWorkers = Executors.newCachedThreadPool();
+    // Images over STRIPE_BYTES move as ranges of that size, up to STRIPES at once, each
+    // over its own socket and session so the node receives them on separate dispatchers
+    private final int STRIPES = Integer.getInteger("relay.stripes",
+            Math.min(8, Runtime.getRuntime().availableProcessors()));
+    // Nodes store images as blocks of this size, deduplicated by hash; stripes are cut
+    // on block boundaries and list at most MAX_STRIPE_BLOCKS hashes in their header
+    private final int BLOCK_BYTES = Integer.getInteger("relay.blockBytes", ChunkStore.DEFAULT_BLOCK_BYTES);
+    private final int MAX_STRIPE_BLOCKS = 512;
+    // Times a failed stripe is sent again before the upload to that node is given up
+    private final int STRIPE_RETRIES = Integer.getInteger("relay.stripeRetries", 1);
+    // Deflate relay chunks that shrink, in both directions; worth it on slow links to the nodes
+    private final boolean RELAY_DEFLATE = Boolean.getBoolean("relay.deflate");
+    // -Drelay.fec=N/K adds K parity chunks to every N relay chunks, so a lossy link to
+    // the nodes loses fewer round trips to resends; off when unset
+    private final String RELAY_FEC = System.getProperty("relay.fec", "");
+    private final int FEC_GROUP = RELAY_FEC.indexOf('/') > 0
+            ? Integer.parseInt(RELAY_FEC.substring(0, RELAY_FEC.indexOf('/'))) : 0;
+    private final int FEC_PARITY = RELAY_FEC.indexOf('/') > 0
+            ? Integer.parseInt(RELAY_FEC.substring(RELAY_FEC.indexOf('/') + 1)) : 0;
+    private final long STRIPE_BYTES = Math.min(MAX_STRIPE_BLOCKS,
+            Math.max(1, Long.getLong("relay.stripeBytes", 8L << 20) / BLOCK_BYTES)) * BLOCK_BYTES;
 
     public static void main(String[] args) {
         TCPServer ss = new TCPServer();
         ss.createUDPServer(args);
     }
 
-    private byte[] createSeqArray(byte[] totalbytes, int n) throws IOException {
-        int seqNumSize = 4;
-        int chunks = n / BUFFER_SIZE;
-        int last_byts = n % BUFFER_SIZE;
-        if (last_byts != 0)
-            chunks++;
-
-        ByteArrayInputStream bhg = new ByteArrayInputStream(totalbytes);
-        ByteArrayOutputStream bsd = new ByteArrayOutputStream();
-
-        byte[] chunkBuf = new byte[BUFFER_SIZE];
-        for (int i = 0; i < chunks; i++) {
-            int seqNum = i + 1;
-            byte[] seqNumBytes = ByteBuffer.allocate(seqNumSize).putInt(seqNum).array();
-            bsd.write(seqNumBytes);
+    TCPServer() {
+        metrics.gauge("relay_sessions_active", SocketRelayChannel::openCount);
+        metrics.gauge("image_cache_hits_total", imageCache::hits);
+        metrics.gauge("image_cache_misses_total", imageCache::misses);
+        metrics.gauge("image_cache_evictions_total", imageCache::evictions);
+        metrics.gauge("image_cache_bytes", imageCache::bytes);
+    }
 
-            int len = bhg.read(chunkBuf);
+    // Stores the image on each of its nodes at once; it counts as written once one has it
+    private boolean postImgToCluster(String filename, Path body) {
+        List<StorageCluster.Node> targets = cluster.writeTargets(filename);
+        if (targets.isEmpty())
+            return false;
 
-            if (len < BUFFER_SIZE){
-                byte[] smaller_buf = new byte[len];
-                System.arraycopy(chunkBuf, 0, smaller_buf, 0, len);
-                bsd.write(smaller_buf);
+        List<Future<Boolean>> replicas = new ArrayList<>();
+        for (StorageCluster.Node node : targets.subList(1, targets.size()))
+            replicas.add(relayWorkers.submit(() -> postImgToUDP(node, filename, body)));
+        boolean stored = postImgToUDP(targets.get(0), filename, body);
+        for (Future<Boolean> replica : replicas) {
+            try {
+                stored |= replica.get();
             }
-            else {
-                bsd.write(chunkBuf);
+            catch (ExecutionException e) {
+                System.out.println(e.getCause().getMessage());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
+        return stored;
+    }
 
-        return bsd.toByteArray();
+    private boolean postImgToUDP(StorageCluster.Node node, String filename, Path body) {
+        try (FileChannel img_fc = FileChannel.open(body, StandardOpenOption.READ)) {
+            // First work out the size of the file, then how many stripes it takes
+            long n = img_fc.size();
+            int stripes = (int) Math.max(1, (n + STRIPE_BYTES - 1) / STRIPE_BYTES);
+            String uploadId = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            striped(0, stripes, STRIPES, k -> {
+                long offset = k * STRIPE_BYTES;
+                // A retry under the same upload id is only asked for the blocks that did not make it
+                for (int attempt = 0; ; attempt++) {
+                    try {
+                        postStripe(node, filename, img_fc, n, offset, Math.min(STRIPE_BYTES, n - offset), uploadId);
+                        break;
+                    }
+                    catch (IOException e) {
+                        if (attempt >= STRIPE_RETRIES)
+                            throw e;
+                        System.out.println(node + ": retrying stripe " + k + " of " + filename + ": " + e.getMessage());
+                        metrics.count("relay_stripe_retries_total");
+                    }
+                }
+            });
+            return true;
+        }
+        catch (IOException ioe) {
+            System.out.println(node + ": " + ioe.getMessage());
+            cluster.suspect(node);
+            return false;
+        }
     }
 
-    private boolean postImgToUDP(String filename, byte[] totalbytes, String[] iparg) {
-        try {
-            // First Calculate the number of packets to be sent
-            int n = totalbytes.length;
-            int numPackets = (int) Math.ceil(n / (double) BUFFER_SIZE);
+    // Moves length bytes of the image from offset on, in a relay session of its own.
+    // Every stripe of one upload carries the same uploadId, so the node can tell when
+    // it has them all.
+    private void postStripe(StorageCluster.Node node, String filename, FileChannel img_fc, long n,
+                            long offset, long length, String uploadId) throws IOException {
+        // Hash the stripe block by block, so the node can say which blocks it already has
+        StringBuilder hashes = new StringBuilder();
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_BYTES);
+        for (long at = 0; at < length; at += BLOCK_BYTES) {
+            block.clear().limit((int) Math.min(BLOCK_BYTES, length - at));
+            while (block.hasRemaining()) {
+                if (img_fc.read(block, offset + at + block.position()) == -1)
+                    throw new IOException("File shrank while hashing");
+            }
+            hashes.append(ChunkStore.hex(ChunkStore.hash(block.flip()))).append("\r\n");
+        }
+
+        try (SocketRelayChannel relay = new SocketRelayChannel(node.address, node.port)) {
+            int chunkSize = relayChunkSize(relay);
 
             /* ---------- THEN SEND THE HEADER TO THE UDP SERVER ----------
-            *  The header includes (in that order): filename, request, numPackets */
-            String mssgStr = filename + "\r\n" + "POST\r\n" + numPackets + "\r\n";
-            byte[] mssgBytes = mssgStr.getBytes();
-
-            int UDP_PORT = 41000;
-            InetAddress IPAddress = InetAddress.getByName(iparg[0]);
-            DatagramSocket datagramSocket = new DatagramSocket();
-
-            DatagramPacket packet = new DatagramPacket(mssgBytes, mssgBytes.length, IPAddress, UDP_PORT);
-            datagramSocket.send(packet);
-            // -------------------- THE HEADER HAS BEEN SENT -------------------- //
-
-            byte[] sequencedBytes = createSeqArray(totalbytes, n);
-            ByteArrayInputStream img_bais = new ByteArrayInputStream(sequencedBytes);
-
-            int packetSeq;
-            boolean resend_flag = false;
-            byte[] img_buf = new byte[BUFFER_SIZE + 4];
-            for (int i = 0; i < numPackets; i++){
-                packetSeq = i + 1;
-                // ------------- Send a sequenced packet to the UDP server ------------- //
-                // Attempt to resend a packet that was not acknowledged
-                if (resend_flag)
-                    datagramSocket.send(packet);
-
-                // Attempt to send current sequenced packet
-                else {
-                    int len = img_bais.read(img_buf);
-                    packet = new DatagramPacket(img_buf, len, IPAddress, UDP_PORT);
-                    datagramSocket.send(packet);
+            *  The header includes (in that order): filename, request, size, chunkSize,
+            *  the offset and length of this stripe, the block size, the upload id and
+            *  the hash of each block. The UDP server answers READY with the chunk size
+            *  it accepts and the blocks (by index in the stripe) it does not have. */
+            String mssgStr = filename + "\r\n" + "POST\r\n" + n + "\r\n" + chunkSize + "\r\n"
+                    + offset + "\r\n" + length + "\r\n" + BLOCK_BYTES + "\r\n" + uploadId + "\r\n" + hashes;
+            BufferedReader reply = new BufferedReader(new StringReader(relay.request(mssgStr, UDP_REPLY_TIMEOUT_MS)));
+            if (!reply.readLine().startsWith("READY"))
+                throw new IOException("Refused the stripe at " + offset);
+            chunkSize = Integer.parseInt(reply.readLine());
+            String missingLine = reply.readLine();
+            String capabilities = reply.readLine();
+            boolean inflates = capabilities != null && capabilities.contains("deflate");
+            boolean rebuilds = capabilities != null && capabilities.contains("fec");
+            int[] missing = missingLine == null || missingLine.isEmpty() ? new int[0]
+                    : Arrays.stream(missingLine.split(",")).mapToInt(Integer::parseInt).toArray();
+            // ------------------ THE HEADER HAS BEEN ACCEPTED ------------------ //
+
+            // Only the missing blocks go out, back to back; only the stripe's last block
+            // can be short, and it is also the last one sent
+            long packed = 0;
+            for (int b : missing)
+                packed += Math.min(BLOCK_BYTES, length - (long) b * BLOCK_BYTES);
+            metrics.add("relay_dedup_bytes_skipped_total", length - packed);
+            ReliableSender.Source blocks = (dst, position) -> {
+                int j = (int) (position / BLOCK_BYTES);
+                if (j >= missing.length)
+                    return -1;
+                long start = (long) missing[j] * BLOCK_BYTES;
+                long within = position % BLOCK_BYTES;
+                int limit = dst.limit();
+                dst.limit(dst.position() + (int) Math.min(dst.remaining(),
+                        Math.min(BLOCK_BYTES, length - start) - within));
+                try {
+                    return img_fc.read(dst, offset + start + within);
+                }
+                finally {
+                    dst.limit(limit);
                 }
+            };
+
+            // Pipeline the chunks through a sliding window. The UDP server may report
+            // back before our last acknowledgements arrive; the sender hands that over.
+            ReliableSender sender = new ReliableSender(relay, blocks, 0, packed, chunkSize);
+            if (RELAY_DEFLATE && inflates)
+                sender.deflateChunks();
+            if (FEC_GROUP > 0 && rebuilds)
+                sender.parity(FEC_GROUP, FEC_PARITY);
+            String getMessage = sender.send();
+            if (getMessage == null)
+                getMessage = sender.awaitStatus();
+
+            if (!getMessage.startsWith("SUCCESS"))
+                throw new IOException("Failed to store the stripe at " + offset);
+        }
+    }
 
-                // check for response from the UDP server for acknowledgement of packets
-                byte[] ackBytes = new byte[4];
-                DatagramPacket ackPckt = new DatagramPacket(ackBytes, 4, IPAddress, UDP_PORT);
-                datagramSocket.receive(ackPckt);
-                int packetSeqAck = ByteBuffer.wrap(ackPckt.getData()).getInt();
-                if (packetSeqAck == packetSeq && resend_flag)
-                    resend_flag = false;
-
-                else if (packetSeqAck != packetSeq && !resend_flag) {
-                    resend_flag = true;
-                    i--;
+    // Starts pulling filename from the first of its nodes that has it into a scratch
+    // file and returns as soon as its size is known, with the stripes still arriving;
+    // null when no node has it. A node that does not answer is marked down and the
+    // next replica is tried; one that fails later on fails the spool.
+    private RelaySpool getImgFromUDP(String filename) throws IOException {
+        for (StorageCluster.Node node : cluster.readTargets(filename)) {
+            // FIRST SEND THE HEADERS TO THE UDP SERVER: filename, request, largest chunk
+            // we take, and the first stripe; the reply tells us how many more there are
+            SocketRelayChannel relay = new SocketRelayChannel(node.address, node.port);
+            Stripe first;
+            RelaySpool spool;
+            try {
+                long[] size = new long[1];
+                first = requestStripe(relay, filename, 0, size);
+                if (first == null) {
+                    relay.close();
+                    continue;
                 }
+                // Pull the chunks through the sliding window into a scratch file at their offsets
+                Path tmp = Files.createTempFile("relay-", ".tmp");
+                spool = new RelaySpool(FileChannel.open(tmp, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE), size[0], STRIPE_BYTES);
+            }
+            catch (IOException ioe) {
+                relay.close();
+                System.out.println(node + ": " + ioe.getMessage());
+                cluster.suspect(node);
+                continue;
+            }
 
-                else if (packetSeqAck != packetSeq)
-                    i--;
+            // The other stripes are requested while the first is still arriving
+            relayWorkers.execute(() -> {
+                try (relay) {
+                    first.receive(spool);
+                }
+                catch (IOException e) {
+                    failed(node, spool, e);
+                }
+            });
+            int stripes = (int) Math.max(1, (spool.size + STRIPE_BYTES - 1) / STRIPE_BYTES);
+            if (stripes > 1) {
+                relayWorkers.execute(() -> {
+                    try {
+                        striped(1, stripes, STRIPES - 1, k -> getStripe(node, filename, spool, k));
+                    }
+                    catch (IOException e) {
+                        failed(node, spool, e);
+                    }
+                });
             }
+            return spool;
+        }
+        return null;
+    }
+
+    private void failed(StorageCluster.Node node, RelaySpool spool, IOException e) {
+        spool.fail(e);
+        // Once the reader has given up, the failure is ours, not the node's
+        if (!spool.isClosed()) {
+            System.out.println(node + ": " + e.getMessage());
+            cluster.suspect(node);
+        }
+    }
+
+    private void getStripe(StorageCluster.Node node, String filename, RelaySpool spool, int k) throws IOException {
+        try (SocketRelayChannel relay = new SocketRelayChannel(node.address, node.port)) {
+            Stripe stripe = requestStripe(relay, filename, k, new long[1]);
+            if (stripe == null)
+                throw new IOException("Lost " + filename + " at stripe " + k);
+            stripe.receive(spool);
+        }
+    }
+
+    // Asks for stripe k of filename and stores the whole file's size in size[0]; null
+    // when the node does not have the file
+    private Stripe requestStripe(SocketRelayChannel relay, String filename, int k, long[] size) throws IOException {
+        int chunkSize = relayChunkSize(relay);
+        long offset = k * STRIPE_BYTES;
+        String options = ((RELAY_DEFLATE ? "deflate " : "") + (FEC_GROUP > 0 ? "fec=" + RELAY_FEC : "")).trim();
+        String mssgStr = filename + "\r\n" + "GET\r\n" + chunkSize + "\r\n" + offset + "\r\n" + STRIPE_BYTES + "\r\n"
+                + (options.isEmpty() ? "" : options + "\r\n");
+
+        // SEND THE HEADERS AND RECEIVE SUCCESS/FAILURE DATA BACK FROM THE UDP SERVER
+        BufferedReader br = new BufferedReader(new StringReader(relay.request(mssgStr, UDP_REPLY_TIMEOUT_MS)));
+        if (!br.readLine().startsWith("SUCCESS"))
+            return null;
+
+        // The rest of the reply: number of packets, the chunk size the node settled on and the file size
+        int numPackets = Integer.parseInt(br.readLine());
+        int settled = Integer.parseInt(br.readLine());
+        size[0] = Long.parseLong(br.readLine());
+        return spool -> {
+            ReliableReceiver receiver = new ReliableReceiver(relay);
+            receiver.onProgress(bytes -> spool.advanced(k, bytes));
+            receiver.receive(numPackets, settled, spool.file, offset);
+        };
+    }
 
-            // GET RESPONSE BYTES FROM THE UDP SERVER
-            ByteArrayOutputStream res_buf = new ByteArrayOutputStream();
-            byte[] receive_buf = new byte[BUFFER_SIZE];
-            packet = new DatagramPacket(receive_buf, receive_buf.length, IPAddress, UDP_PORT);
-            datagramSocket.receive(packet);
-            res_buf.write(packet.getData());
+    // The chunk size to propose to a node; with FEC on, small enough that a PARITY
+    // frame still fits the path
+    private int relayChunkSize(SocketRelayChannel relay) {
+        int chunkSize = CHUNK_SIZE > 0 ? CHUNK_SIZE : relay.pathChunkSize();
+        return FEC_GROUP > 0 ? Math.max(1, chunkSize - RelayChannel.PARITY_EXTRA) : chunkSize;
+    }
+
+    // One stripe's worth of an image transfer
+    private interface Stripe {
+        void receive(RelaySpool spool) throws IOException;
+    }
 
-            // Convert the first line of response into string and parse it out.
-            // Since the response bytes are gauranteed to be less than 1024 bytes we only
-            // need to run it once.
-            BufferedReader readData = new BufferedReader(new InputStreamReader(
-                    new ByteArrayInputStream(res_buf.toByteArray()), StandardCharsets.UTF_8));
-            String getMessage = readData.readLine();
+    private interface StripeTask {
+        void move(int k) throws IOException;
+    }
 
-            readData.close();
-            res_buf.close();
-            datagramSocket.close();
+    // Runs stripes from..count-1 on up to parallel threads, this one included, each
+    // taking the next stripe as it finishes one. The first failure stops the rest.
+    private void striped(int from, int count, int parallel, StripeTask task) throws IOException {
+        AtomicInteger next = new AtomicInteger(from);
+        Callable<Void> worker = () -> {
+            try {
+                for (int k; (k = next.getAndIncrement()) < count; )
+                    task.move(k);
+                return null;
+            }
+            catch (IOException e) {
+                next.set(count);
+                throw e;
+            }
+        };
 
-            return getMessage.startsWith("SUCCESS");
+        List<Future<Void>> helpers = new ArrayList<>();
+        for (int i = 1; i < Math.min(parallel, count - from); i++)
+            helpers.add(relayWorkers.submit(worker));
+        IOException failure = null;
+        try {
+            worker.call();
         }
-        catch (IOException ioe) {
-            System.out.println(ioe.getMessage());
-            return false;
+        catch (IOException e) {
+            failure = e;
+        }
+        catch (Exception e) {
+            failure = new IOException(e);
         }
+        for (Future<Void> helper : helpers) {
+            try {
+                await(helper);
+            }
+            catch (IOException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
     }
 
-    private boolean postImgFile(String filename, byte[] totalbytes) {
-        try (FileOutputStream fos = new FileOutputStream(filename)) {
-            ByteArrayInputStream bais = new ByteArrayInputStream(totalbytes);
-            int j;
-            while ((j = bais.read()) != -1)
-                fos.write(j);
+    private static void await(Future<Void> f) throws IOException {
+        try {
+            f.get();
+        }
+        catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
 
-            fos.close();
-            bais.close();
+    // Stores a request body under filename, on the nodes for an image and on disk
+    // otherwise; the body is moved into place for the latter and left to the caller
+    // for the former
+    private boolean store(String filename, boolean img, Path body) {
+        if (img) {
+            try {
+                long relayStart = System.nanoTime();
+                boolean file_written = postImgToCluster(filename, body);
+                metrics.time(Metrics.series("http_phase_seconds", "phase", "relay"), relayStart);
+                if (file_written)
+                    System.out.println("File written successfully");
+                return file_written;
+            }
+            finally {
+                // Once the UDP server has the new image, no GET may be answered with the old one
+                imageCache.invalidate(filename);
+            }
+        }
+        // Write the bytes to the desired file
+        long diskStart = System.nanoTime();
+        boolean file_written = postImgFile(filename, body);
+        metrics.time(Metrics.series("http_phase_seconds", "phase", "disk"), diskStart);
+        return file_written;
+    }
+
+    private void created(HttpRequest req, boolean file_written, ChannelOutputStream output) throws IOException {
+        String response;
+        if (file_written) {
+            Date date = new Date();
+            response = "HTTP/1.1 201 CREATED\r\n" +
+                    "Date: " + date + "\r\n" +
+                    "Content-Type: " + req.ctype + "\r\n" +
+                    connection(req) +
+                    "Content-Length: 0\r\n\r\n";
+        }
+        else
+            response = "HTTP/1.1 404 ERROR\r\n" + connection(req) + "Content-Length: 0\r\n\r\n";
+        respond(output, req, response);
+    }
+
+    private boolean postImgFile(String filename, Path body) {
+        // The body was spooled next to its destination, so this is a rename, made
+        // durable with the body in a batch with the other POSTs of the moment
+        Path target = Paths.get(filename);
+        try {
+            commits.commit(List.of(body), body, target, Files.size(body));
+            CompressedVariants.invalidate(target);
             return true;
         }
         catch (IOException ioe){
             System.out.println(ioe.getMessage());
+            try {
+                Files.deleteIfExists(body);
+            }
+            catch (IOException ignored) { }
             return false;
         }
     }
 
-    private void createUDPServer(String[] iparg) {
-        ServerSocket serverSocket;
-        InputStream inp;
-        BufferedReader br;
-        ByteArrayOutputStream buffer;
-        OutputStream output;
-        String response;
+    // Resolve a single "bytes=" range against the file size. Returns null when there is
+    // no range we serve partially (absent, malformed or multiple ranges), {-1, -1} when
+    // it lies entirely past the end of the file, and the inclusive {first, last} otherwise.
+    static long[] parseRange(String range, long size) {
+        if (range == null || !range.startsWith("bytes=") || range.indexOf(',') != -1)
+            return null;
+
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1)
+            return null;
 
         try {
-            serverSocket = new ServerSocket(PORT);
+            String from = spec.substring(0, dash).trim();
+            String to = spec.substring(dash + 1).trim();
+            long first;
+            long last;
+            if (from.isEmpty()) {
+                // Suffix range: the final N bytes
+                long suffix = Long.parseLong(to);
+                if (suffix == 0)
+                    return new long[] {-1, -1};
+                first = Math.max(0, size - suffix);
+                last = size - 1;
+            }
+            else {
+                first = Long.parseLong(from);
+                last = to.isEmpty() ? size - 1 : Math.min(Long.parseLong(to), size - 1);
+                if (last < first && first < size)
+                    return null;
+            }
+
+            if (first >= size)
+                return new long[] {-1, -1};
+            return new long[] {first, last};
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Uses a virtual thread per connection where the runtime has them (JDK 21+),
+    // otherwise a cached pool of platform threads bounded by MAX_CONNECTIONS
+    private ExecutorService newConnectionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // Stop accepting, then give in-flight connections DRAIN_SECONDS to finish
+    private void drain(Closeable listener, ExecutorService executor) {
+        running = false;
+        try {
+            listener.close();
+            executor.shutdown();
+            if (!executor.awaitTermination(DRAIN_SECONDS, TimeUnit.SECONDS)) {
+                System.out.println("Drain timed out, closing remaining connections");
+                executor.shutdownNow();
+            }
+        }
+        catch (IOException | InterruptedException e) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void createUDPServer(String[] iparg) {
+        try {
+            cluster = new StorageCluster(iparg);
+        }
+        catch (IOException | IllegalArgumentException e) {
+            System.out.println("Usage: TCPServer host[:port] [host[:port] ...]: " + e.getMessage());
+            return;
+        }
+        cluster.startHealthChecks();
+
+        ExecutorService executor = newConnectionExecutor();
+        if (ENGINE.equals("nio"))
+            serveNio(executor);
+        else
+            serveBlocking(executor);
+    }
+
+    private void serveNio(ExecutorService executor) {
+        try (NioServer nioServer = new NioServer(this, EVENT_LOOPS, executor)) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(nioServer, executor)));
+            System.out.println("Listening on port: " + PORT + " (nio, " + EVENT_LOOPS + " event loops)");
+            nioServer.serve(PORT);
+        }
+
+        catch (IOException e) { System.out.println(e.getMessage()); }
+        catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+
+    private void serveBlocking(ExecutorService executor) {
+        Semaphore permits = new Semaphore(MAX_CONNECTIONS);
+
+        // Accept through a channel so sockets can be written with FileChannel.transferTo
+        try (ServerSocketChannel serverSocket = ServerSocketChannel.open()) {
+            serverSocket.bind(new InetSocketAddress(PORT));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(serverSocket, executor)));
             System.out.println("Listening on port: " + PORT);
-            while (true) {
-                // ACCEPT A CLIENT AND INTERPRET THEIR MESSAGE
-                Socket s = serverSocket.accept();
-                inp = s.getInputStream();
-
-                // Read all contents of the inputstream into a buffer array output stream
-                byte[] buf_temp = new byte[BUFFER_SIZE];
-                buffer = new ByteArrayOutputStream();
-                while (inp.read(buf_temp) != -1) {
-                    // Write the data to the output stream
-                    buffer.write(buf_temp);
-                    if (inp.available() == 0){
+            while (running) {
+                // Block here instead of queueing once MAX_CONNECTIONS are being served
+                permits.acquire();
+                SocketChannel s;
+                try {
+                    s = serverSocket.accept();
+                }
+                catch (IOException e) {
+                    permits.release();
+                    if (!running)
                         break;
-                    }
+                    throw e;
                 }
 
-                // Make a buffered reader to process the buffer array
-                br = new BufferedReader(new InputStreamReader(
-                        new ByteArrayInputStream(buffer.toByteArray()),
-                        StandardCharsets.UTF_8));
-
-                String line;
-                int skipBytes = 2;
-                String filename = null;
-                String mode = null;
-                String ctype = null;
-                boolean img_flag = false;
-                boolean too_big = false;
-                while ((line = br.readLine()).length() != 0) {
-                    System.out.println(line);
-                    skipBytes += line.getBytes().length + 2;
-                    if (line.startsWith("POST")){
-                        mode = "POST";
-                        String[] linelst = line.split(" ");
-                        filename = linelst[1].substring(1);
+                executor.execute(() -> {
+                    try {
+                        handleClient(s);
                     }
-                    else if (line.startsWith("GET")){
-                        mode = "GET";
-                        String[] linelst = line.split(" ");
-                        filename = linelst[1].substring(1);
+                    finally {
+                        permits.release();
                     }
-                    else if (line.startsWith("Content-Type")){
-                        String[] linelst = line.split(" ");
-                        ctype = linelst[1];
-                        if (ctype.startsWith("image") && !img_flag)
-                            img_flag = true;
+                });
+            }
+        }
+
+        catch (IOException e) { System.out.println(e.getMessage()); }
+        catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+
+    // Serve one accepted client until it closes, goes idle or uses up MAX_REQUESTS.
+    // Bytes read past the end of one request stay in the buffer for the next, so
+    // pipelined requests are answered in order.
+    private void handleClient(SocketChannel s) {
+        try (s; Selector readable = Selector.open(); ChannelOutputStream output = new ChannelOutputStream(s)) {
+            // Non-blocking so reads can time out on the selector
+            s.configureBlocking(false);
+            // Headers and body go out in separate writes; do not let Nagle hold the body
+            // back until the client's delayed ACK for the headers
+            s.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            s.register(readable, SelectionKey.OP_READ);
+            ByteBuffer in = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            HttpParser parser = new HttpParser();
+
+            for (int served = 1; ; served++) {
+                // INTERPRET THE CLIENT'S MESSAGE
+                HttpRequest req;
+                while ((req = parser.parse(in)) == null) {
+                    // Give up on headers that do not fit the buffer or a client that went away or idled
+                    long timeout = in.position() == 0 ? KEEP_ALIVE_MS : READ_TIMEOUT_MS;
+                    if (!in.hasRemaining() || read(s, in, readable, timeout) <= 0)
+                        return;
+                }
+
+                Path body = null;
+                BodySpooler spool = BodySpooler.forRequest(req);
+                if (spool != null) {
+                    if (req.expectContinue && in.position() == 0)
+                        output.write("HTTP/1.1 100 CONTINUE\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+                    try {
+                        body = readBody(s, in, spool, readable);
+                    }
+                    catch (BodySpooler.MalformedException e) {
+                        badRequest(req, output, e);
+                        return;
                     }
-                    else if (line.startsWith("Expect"))
-                        too_big = true;
+                    metrics.time(Metrics.series("http_phase_seconds", "phase", "body"), req.received);
                 }
 
-                output =  s.getOutputStream();
+                req.keepAlive = keepAlive(req, served);
+                try {
+                    serveRequest(req, body, output);
+                }
+                finally {
+                    recordRequest(req);
+                }
+                if (!req.keepAlive)
+                    return;
+            }
+        }
 
-                if (too_big) {
-                    response = "HTTP/1.1 100 CONTINUE\r\n\r\n";
-                    output.write(response.getBytes(StandardCharsets.UTF_8));
+        catch (IOException e) { System.out.println(e.getMessage()); }
+    }
 
-                    buffer.close();
-                    buffer = new ByteArrayOutputStream();
+    // Whether the connection takes another request after req, the served-th on it
+    boolean keepAlive(HttpRequest req, int served) {
+        // A body we do not read would be taken for the next request
+        boolean framed = req.hasBody() || (req.contentLength <= 0 && !req.chunked);
+        return req.keepAlive && framed && served < MAX_REQUESTS && running;
+    }
 
-                    byte[] new_buf_temp = new byte[BUFFER_SIZE];
-                    while (inp.read(new_buf_temp) != -1) {
-                        // Write the data to the output stream
-                        buffer.write(new_buf_temp);
-                        if (inp.available() == 0){
-                            break;
-                        }
-                    }
-                    skipBytes = 0;
+    // Answers a request whose body we could not follow and counts it; the connection
+    // is closed after, as where the next request starts is anybody's guess
+    void badRequest(HttpRequest req, ChannelOutputStream output, IOException e) throws IOException {
+        System.err.println("Bad request body for " + req.filename + ": " + e.getMessage());
+        req.keepAlive = false;
+        try {
+            respond(output, req, "HTTP/1.1 400 BAD REQUEST\r\n" + connection(req) + "Content-Length: 0\r\n\r\n");
+        }
+        finally {
+            recordRequest(req);
+        }
+    }
+
+    // Writes the response head and notes its status for the request metrics
+    private void respond(ChannelOutputStream output, HttpRequest req, String head) throws IOException {
+        req.status = Integer.parseInt(head.substring(9, 12));
+        output.write(head.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Counts a finished request and how long it took from its headers arriving
+    void recordRequest(HttpRequest req) {
+        metrics.count(Metrics.series("http_requests_total", "method", Metrics.oneOf(req.mode, HttpParser.METHODS),
+                "status", String.valueOf(req.status),
+                "content_type", Metrics.oneOf(req.ctype, HttpParser.CONTENT_TYPES)));
+        metrics.time("http_request_seconds", req.received);
+    }
+
+    private static String connection(HttpRequest req) {
+        return req.keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n";
+    }
+
+    // Reads what the client has sent, waiting up to timeoutMs for it.
+    // Returns -1 at end of stream and 0 when the client stayed silent.
+    private int read(SocketChannel s, ByteBuffer in, Selector readable, long timeoutMs) throws IOException {
+        int n;
+        while ((n = s.read(in)) == 0) {
+            if (readable.select(timeoutMs) == 0)
+                return 0;
+            readable.selectedKeys().clear();
+        }
+        if (n > 0)
+            metrics.add("http_bytes_in_total", n);
+        return n;
+    }
+
+    // Stream the rest of the body from the socket into the spool file
+    private Path readBody(SocketChannel s, ByteBuffer in, BodySpooler spool, Selector readable) throws IOException {
+        try {
+            in.flip();
+            while (!spool.consume(in)) {
+                in.compact();
+                int n = read(s, in, readable, READ_TIMEOUT_MS);
+                if (n == -1)
+                    throw new EOFException("Client closed the connection before the body ended");
+                if (n == 0)
+                    throw new SocketTimeoutException("Client stalled in the middle of the body");
+                in.flip();
+            }
+            in.compact();
+            return spool.finish();
+        }
+        catch (IOException e) {
+            spool.abort();
+            throw e;
+        }
+    }
+
+    // Answer a parsed request; shared by the blocking and the NIO engine
+    // For POSTs, body is the spooled request body (or null when it could not be framed);
+    // it is consumed by the time this returns.
+    void serveRequest(HttpRequest req, Path body, ChannelOutputStream output) throws IOException {
+        String mode = req.mode;
+        String filename = req.filename;
+        String ctype = req.ctype;
+        boolean img_flag = req.imgFlag;
+        String response;
+
+        // A PATH NO FILE CAN HAVE; ANY BODY IS LEFT UNREAD, SO THE CONNECTION GOES TOO
+        if (req.badPath) {
+            req.keepAlive = false;
+            response = "HTTP/1.1 400 BAD REQUEST\r\n" + connection(req) + "Content-Length: 0\r\n\r\n";
+            respond(output, req, response);
+        }
+
+        // STORE DATA FROM A CLIENT AND SEND BACK THE SUCCESS STATUS
+        else if (mode != null && (mode.equals("POST") || (req.hasBody() && req.contentRange == null))){
+            if (body == null) {
+                // The unread body is still in the way of any next request
+                req.keepAlive = false;
+                response = "HTTP/1.1 411 LENGTH REQUIRED\r\n" + connection(req) + "Content-Length: 0\r\n\r\n";
+                respond(output, req, response);
+            }
+            else {
+                boolean file_written;
+                try {
+                    file_written = store(filename, img_flag, body);
+                }
+                finally {
+                    Files.deleteIfExists(body);
                 }
+                created(req, file_written, output);
+            }
+        }
 
-                br.close();
+        // A PIECE OF AN UPLOAD SENT IN PIECES; SEE ResumableUploads
+        else if (req.hasBody()) {
+            long[] range = ResumableUploads.parse(req.contentRange);
+            if (body == null) {
+                req.keepAlive = false;
+                response = "HTTP/1.1 411 LENGTH REQUIRED\r\n" + connection(req) + "Content-Length: 0\r\n\r\n";
+                respond(output, req, response);
+            }
+            // Malformed, not on block boundaries, of a file over the upload limit, or with
+            // more or fewer bytes than it says
+            else if (range == null || Files.size(body) != (range[0] < 0 ? 0 : range[1] - range[0] + 1)) {
+                Files.deleteIfExists(body);
+                response = "HTTP/1.1 416 RANGE NOT SATISFIABLE\r\n" + connection(req) + "Content-Length: 0\r\n\r\n";
+                respond(output, req, response);
+            }
+            else {
+                ResumableUploads.Progress progress;
+                try {
+                    progress = uploads.write(filename, range, body);
+                }
+                catch (IOException ioe) {
+                    System.err.println("Upload of " + filename + ": " + ioe.getMessage());
+                    progress = null;
+                }
+                finally {
+                    Files.deleteIfExists(body);
+                }
 
-                // STORE DATA FROM A CLIENT AND SEND BACK THE SUCCESS STATUS
-                if (mode != null && mode.equals("POST")){
-                    // Skip the first bytes containing the headers to the payload
-                    byte[] buf_arr = buffer.toByteArray();
-                    buffer.close();
-                    byte[] totalbytes = new byte[buf_arr.length - skipBytes];
-                    System.arraycopy(buf_arr, skipBytes, totalbytes, 0, totalbytes.length);
+                if (progress == null)
+                    created(req, false, output);
+                else if (progress.complete == null) {
+                    // Range says how much of the start is in; the client sends on from there
+                    response = "HTTP/1.1 308 RESUME INCOMPLETE\r\n" +
+                            (progress.prefix > 0 ? "Range: bytes=0-" + (progress.prefix - 1) + "\r\n" : "") +
+                            connection(req) +
+                            "Content-Length: 0\r\n\r\n";
+                    respond(output, req, response);
+                }
+                else {
+                    // Whole at last: taken like a POST body. A text file is renamed out of
+                    // the upload; an image that no node took stays, so the last piece can
+                    // be sent again rather than all of them.
+                    boolean file_written = store(filename, img_flag, progress.complete);
+                    if (file_written || !img_flag)
+                        uploads.finish(filename, range[2]);
+                    created(req, file_written, output);
+                }
+            }
+        }
 
-                    // FILE IS AN IMAGE
-                    if (img_flag) {
-                        boolean file_written = postImgToUDP(filename, totalbytes, iparg);
+        // SEND A RESPONSE TO THE CLIENT FOR GET REQUEST
+        else if (mode != null && mode.equals("GET")){
+            ByteBuffer cached = img_flag ? imageCache.get(filename) : null;
+            if ("metrics".equals(filename)) {
+                byte[] text = metrics.render().getBytes(StandardCharsets.UTF_8);
+                response = "HTTP/1.1 200 OK\r\n" +
+                "Content-Type: text/plain; version=0.0.4\r\n" +
+                connection(req) +
+                "Content-Length: " + text.length + "\r\n\r\n";
+                respond(output, req, response);
+                output.write(text);
+            }
 
-                        if (file_written) {
-                            System.out.println("File written successfully");
-                            Date date = new Date();
-                            response = "HTTP/1.1 201 CREATED\r\n" +
-                                    "Date: " + date + "\r\n" +
-                                    "Content-Type: " + ctype + "\r\n\r\n";
-                            output.write(response.getBytes());
-                        }
-                        else {
-                            response = "HTTP/1.1 404 ERROR\r\n\r\n";
-                            output.write(response.getBytes());
-                        }
-                    }
+            else if (cached != null) {
+                Date date = new Date();
+                response = "HTTP/1.1 200 OK\r\n" +
+                "Date: " + date + "\r\n" +
+                "Content-Type: " + ctype + "\r\n" +
+                "X-Cache: HIT\r\n" +
+                connection(req) +
+                "Content-Length: " + cached.remaining() + "\r\n\r\n";
+                respond(output, req, response);
+                output.write(cached);
+            }
 
-                    // FILE IS NOT AN IMAGE
-                    else {
-                        // Write the bytes to the desired file
-                        boolean file_written = postImgFile(filename, totalbytes);
-                        if (file_written) {
-                            Date date = new Date();
-                            response = "HTTP/1.1 201 CREATED\r\n" +
-                                    "Date: " + date + "\r\n" +
-                                    "Content-Type: " + ctype + "\r\n\r\n";
-                            output.write(response.getBytes());
-                        }
+            else if (img_flag) {
+                long generation = imageCache.generation();
+                long relayStart = System.nanoTime();
+                RelaySpool spool = null;
+                try {
+                    spool = getImgFromUDP(filename);
+                }
+                catch (IOException ioe) {
+                    System.out.println(ioe.getMessage());
+                }
 
-                        else {
-                            response = "HTTP/1.1 404 ERROR\r\n\r\n";
-                            output.write(response.getBytes());
+                if (spool != null) {
+                    // A relay failing after the headers leaves the response short of its
+                    // Content-Length; the exception closes the connection
+                    try (RelaySpool img = spool) {
+                        metrics.time(Metrics.series("http_phase_seconds", "phase", "relay_first_byte"), relayStart);
+                        long size = img.size;
+
+                        Date date = new Date();
+                        response = "HTTP/1.1 200 OK\r\n" +
+                        "Date: " + date + "\r\n" +
+                        "Content-Type: " + ctype + "\r\n" +
+                        "X-Cache: MISS\r\n" +
+                        connection(req) +
+                        "Content-Length: " + size + "\r\n\r\n";
+                        respond(output, req, response);
+
+                        // Forward the image as its prefix fills in, rather than after the whole transfer
+                        for (long sent = 0; sent < size; ) {
+                            long ready = img.awaitBeyond(sent);
+                            output.transferFrom(img.file, sent, ready - sent);
+                            sent = ready;
                         }
+                        metrics.time(Metrics.series("http_phase_seconds", "phase", "relay"), relayStart);
+                        imageCache.put(filename, img.file, size, generation);
                     }
                 }
+                else {
+                    response = "HTTP/1.1 404 ERROR\r\n" + connection(req) + "Content-Length: 0\r\n\r\n";
+                    respond(output, req, response);
+                }
+            }
 
-                // SEND A RESPONSE TO THE CLIENT FOR GET REQUEST
-                else if (mode != null && mode.equals("GET")){
-                    if (img_flag) {
-                        // FIRST SEND THE HEADERS TO THE UDP SERVER
-                        String mssgStr = filename + "\r\n" + "GET\r\n";
-                        int mssg_len = mssgStr.getBytes().length;
-
-                        int UDP_PORT = 41000;
-                        DatagramSocket datagramSocket = new DatagramSocket();
-                        InetAddress IPAddress  = InetAddress.getByName(iparg[0]);
-
-                        DatagramPacket packet = new DatagramPacket(mssgStr.getBytes(), mssg_len, IPAddress, UDP_PORT);
-                        datagramSocket.send(packet);
-                        // ---------- HEADERS HAVE BEEN SENT ---------- //
-
-                        // RECEIVE SUCCESS/FAILURE DATA BACK FROM THE UDP SERVER
-                        ByteArrayOutputStream res_buf = new ByteArrayOutputStream();
-                        byte[] receive_buf = new byte[BUFFER_SIZE];
-                        packet = new DatagramPacket(receive_buf, BUFFER_SIZE, IPAddress, UDP_PORT);
-                        datagramSocket.receive(packet);
-                        res_buf.write(packet.getData());
-
-                        // CONVERT THE FIRST LINE TO STRING FOR PARSING TO SUCCESS/FAILURE
-                        br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(res_buf.toByteArray()),
-                                StandardCharsets.UTF_8));
-                        String getMessage = br.readLine();
-
-                        if (getMessage.startsWith("SUCCESS")) {
-                            // Make another request to the server to get the number of packets
-                            int numPackets = Integer.parseInt(br.readLine());
-                            br.close();
-
-                            HashMap<Integer, byte[]> packetMap = new HashMap<>();
-                            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                            byte[] seqBuffer = new byte[BUFFER_SIZE + SEQ_BYTES];
-                            DatagramPacket seqRecievePacket = new DatagramPacket(seqBuffer,BUFFER_SIZE + SEQ_BYTES);
-                            int currNumPackets = 0;
-                            while (true) {
-                                datagramSocket.receive(seqRecievePacket);
-                                byte[] img_data = seqRecievePacket.getData();
-                                int seqNum = ByteBuffer.wrap(img_data).getInt();
-
-                                if (!packetMap.containsKey(seqNum)) {
-                                    int packetSize = seqRecievePacket.getLength();
-                                    byte[] imgBytes = new byte[packetSize - SEQ_BYTES];
-                                    System.arraycopy(img_data, SEQ_BYTES, imgBytes, 0, packetSize - SEQ_BYTES);
-                                    packetMap.put(seqNum, imgBytes);
-                                    currNumPackets++;
-
-                                    // SEND ACKNOWLEDGEMENT
-                                    byte[] send_seqAck = ByteBuffer.allocate(SEQ_BYTES).putInt(seqNum).array();
-                                    DatagramPacket sendPacket = new DatagramPacket(send_seqAck, SEQ_BYTES, IPAddress, UDP_PORT);
-                                    datagramSocket.send(sendPacket);
-                                }
-
-                                if (currNumPackets >= numPackets) {
-                                    for (int i = 0; i < numPackets; i++) {
-                                        int curr_seq = i + 1;
-                                        byte[] curr_packet = packetMap.get(curr_seq);
-                                        bos.write(curr_packet);
-                                    }
-
-                                    byte[] bosarr = bos.toByteArray();
-                                    ByteArrayInputStream succ_bais = new ByteArrayInputStream(bosarr);
-
-                                    Date date = new Date();
-                                    response = "HTTP/1.1 200 OK\r\n" +
-                                    "Date: " + date + "\r\n" +
-                                    "Content-Type: " + ctype + "\r\n" +
-                                    "Content-Length: " + bosarr.length + "\r\n\r\n";
-                                    output.write(response.getBytes());
-
-                                    byte[] img_resbt = new byte[BUFFER_SIZE];
-                                    while (succ_bais.read(img_resbt) != -1)
-                                        output.write(img_resbt);
-                                }
-                            }
+            else {
+                File getF = new File(filename);
+                if (getF.exists()) {
+                    // A whole-file GET may get the stored compressed copy; a Range is always
+                    // about the plain bytes
+                    boolean compressible = CompressedVariants.compressible(ctype);
+                    String coding = compressible && req.range == null
+                            ? CompressedVariants.negotiate(req.acceptEncoding) : null;
+                    Path variant = null;
+                    if (coding != null) {
+                        try {
+                            variant = CompressedVariants.variant(getF.toPath(), coding);
+                        }
+                        catch (IOException ioe) {
+                            System.out.println("Serving " + filename + " uncompressed: " + ioe.getMessage());
                         }
-
-                        datagramSocket.close();
                     }
-
-                    else {
-                        File getF = new File(filename);
-                        if (getF.exists()) {
-                            FileInputStream fis = new FileInputStream(getF);
-                            Date date = new Date();
-                            response = "HTTP/1.1 200 OK\r\n" +
+                    try (FileChannel fc = FileChannel.open(variant != null ? variant : getF.toPath(),
+                            StandardOpenOption.READ)) {
+                        long size = fc.size();
+                        long[] range = parseRange(req.range, size);
+                        Date date = new Date();
+
+                        if (range != null && range[0] < 0) {
+                            response = "HTTP/1.1 416 RANGE NOT SATISFIABLE\r\n" +
                                     "Date: " + date + "\r\n" +
-                                    "Content-Type: " + ctype + "\r\n" +
-                                    "Content-Length: " + fis.available() + "\r\n\r\n";
-                            output.write(response.getBytes());
-
-                            int bread;
-                            while ((bread = fis.read()) != -1)
-                                output.write(bread);
-
-                            fis.close();
+                                    "Content-Range: bytes */" + size + "\r\n" +
+                                    connection(req) +
+                                    "Content-Length: 0\r\n\r\n";
+                            respond(output, req, response);
                         }
                         else {
-                            response = "HTTP/1.1 404 ERROR\r\n\r\n";
-                            output.write(response.getBytes());
+                            long first = range == null ? 0 : range[0];
+                            long length = range == null ? size : range[1] - range[0] + 1;
+                            response = (range == null ? "HTTP/1.1 200 OK\r\n" : "HTTP/1.1 206 PARTIAL CONTENT\r\n") +
+                                    "Date: " + date + "\r\n" +
+                                    "Content-Type: " + ctype + "\r\n" +
+                                    (variant != null ? "Content-Encoding: " + coding + "\r\n" : "") +
+                                    (compressible ? "Vary: Accept-Encoding\r\n" : "") +
+                                    "Accept-Ranges: bytes\r\n" +
+                                    connection(req) +
+                                    (range == null ? "" : "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + size + "\r\n") +
+                                    "Content-Length: " + length + "\r\n\r\n";
+                            respond(output, req, response);
+
+                            // Let the kernel copy the file into the socket (sendfile)
+                            output.transferFrom(fc, first, length);
                         }
                     }
                 }
-
                 else {
-                    response = "HTTP/1.1 404 ERROR\r\n\r\n";
-                    output.write(response.getBytes());
+                    response = "HTTP/1.1 404 ERROR\r\n" + connection(req) + "Content-Length: 0\r\n\r\n";
+                    respond(output, req, response);
                 }
-
-                output.flush();
-                output.close();
-                inp.close();
             }
         }
 
-        catch (IOException e) { System.out.println(e.getMessage()); }
+        else {
+            response = "HTTP/1.1 404 ERROR\r\n" + connection(req) + "Content-Length: 0\r\n\r\n";
+            respond(output, req, response);
+        }
     }
 }
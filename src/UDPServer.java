@@ -1,216 +1,515 @@
 import java.io.*;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
 
 public class UDPServer {
-    private static final int BUFFER_SIZE = 1024;
-    private static final int PORT = 41000;
-    private static final int seqBytes = 4;
-
+    // Largest relay payload this node accepts or sends in one datagram
+    private static final int MAX_CHUNK_SIZE = Integer.getInteger("udp.maxChunkSize", RelayChannel.MAX_CHUNK);
+    // Room for a PARITY frame, whose header is the larger one
+    private static final int DATAGRAM_SIZE = RelayChannel.HEADER_BYTES + ReliableSender.SEQ_BYTES + MAX_CHUNK_SIZE
+            + RelayChannel.PARITY_EXTRA;
+    private static final int SOCKET_BUFFER = 4 << 20;
+    // Direct buffers shared by every session; when all are queued, new datagrams are dropped
+    private static final int BUFFER_POOL = Integer.getInteger("udp.bufferPool", 256);
+    private static final int WORKERS = Integer.getInteger("udp.workers", 64);
+    // Sockets sharing the port through SO_REUSEPORT, each with its own dispatcher thread;
+    // the kernel spreads front end sockets over them, so stripes are received in parallel
+    private static final int DISPATCHERS = Integer.getInteger("udp.dispatchers",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long SESSION_IDLE_MS = Long.getLong("udp.sessionIdleMs", 30_000);
+    // Frames queued for a session that has not caught up yet; more are dropped like any lost datagram
+    private static final int SESSION_QUEUE = 4096;
+    // Largest image taken, and most blocks one may be cut into. A POST header sizes
+    // the upload's arrays, and any datagram can carry one.
+    private static final long MAX_FILE_BYTES = Long.getLong("udp.maxFileBytes", 16L << 30);
+    private static final int MAX_BLOCKS = Integer.getInteger("udp.maxBlocks", 1 << 18);
+
+    private final ConcurrentHashMap<SessionKey, Session> sessions = new ConcurrentHashMap<>();
+    private final BlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<>(BUFFER_POOL);
+    private final int port;
+    private ChunkStore store;
+    // Where this node keeps its images; several nodes on one host need one each
+    private final Path dir;
+
+    // Usage: UDPServer [port] [storage dir]
     public static void main(String[] args) {
-        UDPServer upi = new UDPServer();
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : StorageCluster.DEFAULT_PORT;
+        Path dir = Paths.get(args.length > 1 ? args[1] : ".");
+        UDPServer upi = new UDPServer(port, dir);
         upi.startUDPServer();
     }
 
-    private void startUDPServer() {
-        try (DatagramSocket udpSocket = new DatagramSocket(PORT)) {
-            System.out.println("UDP server is listening on port " + PORT + "...");
+    UDPServer(int port, Path dir) {
+        this.port = port;
+        this.dir = dir;
+    }
 
-            byte[] buffer = new byte[BUFFER_SIZE];
-            DatagramPacket receivePacket = new DatagramPacket(buffer, BUFFER_SIZE);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            DatagramPacket sendPacket;
-            HashMap<Integer, byte[]> packetMap = new HashMap<>();
+    // Dispatcher threads read every datagram and route it to its session; the sessions
+    // themselves run on the worker pool
+    private void startUDPServer() {
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+        ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor();
+        List<DatagramChannel> channels = new ArrayList<>();
+
+        try {
+            Files.createDirectories(dir);
+            store = new ChunkStore(dir);
+            for (int i = 0; i < DISPATCHERS; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                channels.add(channel);
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+                if (DISPATCHERS > 1) {
+                    if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                        // One socket then; every stripe still gets its own session
+                        if (i == 0)
+                            System.out.println("SO_REUSEPORT is not supported, using one dispatcher");
+                        channel.bind(new InetSocketAddress(port));
+                        break;
+                    }
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channel.bind(new InetSocketAddress(port));
+            }
+            System.out.println("UDP server is listening on port " + port + " with " + channels.size()
+                    + " dispatcher(s)...");
+            reaper.scheduleAtFixedRate(this::reapIdleSessions, SESSION_IDLE_MS, SESSION_IDLE_MS / 2,
+                    TimeUnit.MILLISECONDS);
+
+            Metrics.get().gauge("relay_sessions_active", sessions::size);
+            Metrics.get().gauge("relay_buffers_free", pool::size);
+            for (int i = 0; i < BUFFER_POOL; i++)
+                pool.add(ByteBuffer.allocateDirect(DATAGRAM_SIZE));
+
+            for (int i = 1; i < channels.size(); i++) {
+                DatagramChannel channel = channels.get(i);
+                Thread t = new Thread(() -> {
+                    try {
+                        dispatch(channel, workers);
+                    }
+                    catch (IOException e) {
+                        System.err.println("Socket error: " + e.getMessage());
+                    }
+                }, "udp-dispatch-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            dispatch(channels.get(0), workers);
+        } catch (IOException e) {
+            System.err.println("Socket error: " + e.getMessage());
+        } finally {
+            for (DatagramChannel channel : channels) {
+                try {
+                    channel.close();
+                }
+                catch (IOException ignored) { }
+            }
+            reaper.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
 
-            // ------------- GET THE HEADER DATA FROM THE SERVER ------------- //
-            udpSocket.receive(receivePacket);
-            bos.write(receivePacket.getData());
+    // Datagrams of one front end socket always arrive on the same channel, so a
+    // session is only ever fed by one dispatcher and answers through its channel
+    private void dispatch(DatagramChannel channel, ExecutorService workers) throws IOException {
+        ByteBuffer overflow = ByteBuffer.allocateDirect(DATAGRAM_SIZE);
+        while (true) {
+            ByteBuffer buffer = pool.poll();
+            if (buffer == null)
+                buffer = overflow;
+            buffer.clear();
+            InetSocketAddress from = (InetSocketAddress) channel.receive(buffer);
+            buffer.flip();
+            if (buffer == overflow || buffer.remaining() < RelayChannel.HEADER_BYTES) {
+                release(buffer);
+                continue;
+            }
 
-            InetAddress callerIPAddress = receivePacket.getAddress();
-            int callerPort = receivePacket.getPort();
+            SessionKey key = new SessionKey(buffer.getInt(1), from);
+            Session session = sessions.get(key);
+            if (session == null) {
+                // Anything but a new request is a straggler from a finished session
+                if (buffer.get(0) != RelayChannel.REQUEST) {
+                    release(buffer);
+                    continue;
+                }
+                // Until a worker takes the session up it holds a heap copy of its request,
+                // so a burst of new sessions queued for workers cannot drain the pool that
+                // the running ones receive into
+                ByteBuffer request = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+                release(buffer);
+                session = new Session(key, channel, request);
+                sessions.put(key, session);
+                workers.execute(session);
+            }
+            else if (!session.offer(buffer)) {
+                release(buffer);
+            }
+        }
+    }
 
-            bos.write(receivePacket.getData());
-            BufferedReader br = new BufferedReader(new InputStreamReader(
-                    new ByteArrayInputStream(bos.toByteArray()),
-                    StandardCharsets.UTF_8));
+    // Hands a buffer back to the pool; the overflow buffer is never pooled
+    private void release(ByteBuffer buffer) {
+        if (buffer.capacity() == DATAGRAM_SIZE && buffer.isDirect())
+            pool.offer(buffer);
+    }
 
-            // File name
-            String fname = br.readLine();
-            // Request: POST/GET
-            String rqst = br.readLine();
+    private void reapIdleSessions() {
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(session -> {
+            boolean idle = now - session.lastActive > SESSION_IDLE_MS;
+            if (idle)
+                session.closed = true;
+            return idle;
+        });
+    }
 
-            bos.reset();
+    // A numeric header field, which must lie in [min, max]; a request with one that is
+    // missing, not a number or out of range is malformed
+    private static long field(String line, long min, long max) {
+        long value = Long.parseLong(line == null ? "" : line.trim());
+        if (value < min || value > max)
+            throw new IllegalArgumentException("Header field " + value + " is not in [" + min + ", " + max + "]");
+        return value;
+    }
 
-            byte[] seqBuffer = new byte[BUFFER_SIZE + 4];
-            DatagramPacket seqRecievePacket = new DatagramPacket(seqBuffer, BUFFER_SIZE + 4);
-            // ----------------- HEADER DATA HAS BEEN PROCESSED ----------------- //
+    // Moves the new blocks of a POST from its staging file, where they arrive back to
+    // back, into the store in order as each is complete
+    private final class StagedBlocks {
+        private final FileChannel staging;
+        private final boolean[] wanted;
+        private final byte[][] hashes;
+        private final long length;
+        private final int blockBytes;
+        private final ByteBuffer block;
+        // The next block to store and where it starts in the staging file
+        private int next;
+        private long position;
+        private IOException failure;
+
+        StagedBlocks(FileChannel staging, boolean[] wanted, byte[][] hashes, long length, int blockBytes) {
+            this.staging = staging;
+            this.wanted = wanted;
+            this.hashes = hashes;
+            this.length = length;
+            this.blockBytes = blockBytes;
+            this.block = ByteBuffer.allocate(blockBytes);
+        }
 
-            if (rqst.startsWith("POST")) {
-                // Number of packets
-                int numPackets = Integer.parseInt(br.readLine());
-
-                int currNumPackets = 0;
-                // ---------- NOW CONTINUOUSLY LISTEN FOR UPCOMING PACKETS ---------- //
-                while (true){
-                    udpSocket.receive(seqRecievePacket);
-                    byte[] img_data = seqRecievePacket.getData();
-                    int seqNum = ByteBuffer.wrap(img_data).getInt();
-
-                    if (!packetMap.containsKey(seqNum)) {
-                        int packetSize = seqRecievePacket.getLength();
-                        byte[] imgBytes = new byte[packetSize - seqBytes];
-                        System.arraycopy(img_data, seqBytes, imgBytes, 0, packetSize - seqBytes);
-                        packetMap.put(seqNum, imgBytes);
-                        currNumPackets++;
-
-                        // SEND ACKNOWLEDGEMENT
-                        byte[] send_seqAck = ByteBuffer.allocate(seqBytes).putInt(seqNum).array();
-                        sendPacket = new DatagramPacket(send_seqAck, seqBytes, callerIPAddress, callerPort);
-                        udpSocket.send(sendPacket);
+        // The first arrived bytes of the staging file are in
+        void advance(long arrived) {
+            try {
+                while (failure == null && next < wanted.length) {
+                    if (!wanted[next]) {
+                        next++;
+                        continue;
                     }
+                    int len = (int) Math.min(blockBytes, length - (long) next * blockBytes);
+                    if (position + len > arrived)
+                        return;
+                    block.clear().limit(len);
+                    while (block.hasRemaining()) {
+                        if (staging.read(block, position + block.position()) == -1)
+                            throw new IOException("Staging file ends at " + (position + block.position()));
+                    }
+                    hashes[next] = store.put(block.flip(), hashes[next]);
+                    position += len;
+                    next++;
+                }
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+        }
 
-                    if (currNumPackets >= numPackets) {
-                        for (int i = 0; i < numPackets; i++) {
-                            int curr_seq = i + 1;
-                            byte[] curr_packet = packetMap.get(curr_seq);
-                            bos.write(curr_packet);
-                        }
+        // Stores what is left once all packed bytes are in
+        void finish(String fname, long packed) throws IOException {
+            advance(packed);
+            if (failure != null)
+                throw failure;
+            if (next < wanted.length)
+                throw new IOException("Upload of " + fname + " came up short");
+        }
+    }
 
-                        byte[] bosarr = bos.toByteArray();
+    private static final class SessionKey {
+        final int session;
+        final InetSocketAddress address;
 
-                        try {
-                            FileOutputStream fos = new FileOutputStream(fname);
-                            ByteArrayInputStream bais = new ByteArrayInputStream(bosarr);
+        SessionKey(int session, InetSocketAddress address) {
+            this.session = session;
+            this.address = address;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SessionKey))
+                return false;
+            SessionKey other = (SessionKey) o;
+            return session == other.session && address.equals(other.address);
+        }
 
-                            byte[] img_writeBuf = new byte[BUFFER_SIZE];
-                            while (bais.read(img_writeBuf) != -1)
-                                fos.write(img_writeBuf);
+        @Override
+        public int hashCode() {
+            return Objects.hash(session, address);
+        }
+    }
 
-                            fos.close();
-                            bais.close();
+    // One POST or GET from one front end, fed by the dispatcher through a queue
+    private class Session extends RelayChannel implements Runnable {
+        private final SessionKey key;
+        private final DatagramChannel channel;
+        private final BlockingQueue<ByteBuffer> inbox = new ArrayBlockingQueue<>(SESSION_QUEUE);
+        // The frame last handed out by receive, pooled again on the next call
+        private ByteBuffer current;
+        private boolean finished = false;
+        // Set once a worker runs the session; frames before then are dropped
+        private boolean started = false;
+        private String lastReply;
+        volatile long lastActive = System.currentTimeMillis();
+        volatile boolean closed = false;
+
+        Session(SessionKey key, DatagramChannel channel, ByteBuffer request) {
+            super(key.session);
+            this.key = key;
+            this.channel = channel;
+            inbox.add(request);
+        }
 
-                            byte[] sendRes = "SUCCESS\r\n".getBytes();
-                            sendPacket = new DatagramPacket(sendRes, sendRes.length,
-                                    callerIPAddress, callerPort);
-                            udpSocket.send(sendPacket);
+        // Returns false before the session has started and once it has finished; the
+        // caller keeps the buffer. Nothing but a repeat of the request can come before
+        // our reply to it, and the sender repeats that again on its own.
+        synchronized boolean offer(ByteBuffer frame) {
+            lastActive = System.currentTimeMillis();
+            return started && !finished && inbox.offer(frame);
+        }
 
-                        } catch (IOException ioe) {
-                            System.err.println(ioe.getMessage());
-                            byte[] sendRes = "FAILURE\r\n".getBytes();
-                            sendPacket = new DatagramPacket(sendRes, sendRes.length,
-                                    callerIPAddress, callerPort);
-                            udpSocket.send(sendPacket);
-                        }
-                    }
-                }
+        // Stops taking frames and returns every buffer the session still holds
+        private void finish() {
+            synchronized (this) {
+                finished = true;
             }
+            if (current != null)
+                release(current);
+            current = null;
+            ByteBuffer frame;
+            while ((frame = inbox.poll()) != null)
+                release(frame);
+        }
 
-            else if (rqst.startsWith("GET")) {
-                File getF = new File(fname);
-                if (getF.exists()) {
-                    try (FileInputStream fis = new FileInputStream(getF)) {
-
-                        byte[] img_buf = new byte[BUFFER_SIZE];
-                        while (fis.read(img_buf) != -1)
-                            bos.write(img_buf);
-
-                        byte[] imgBytes = bos.toByteArray();
-                        int n = imgBytes.length;
-                        int numPackets = (int) Math.ceil(n / (double) BUFFER_SIZE);
-
-                        String message = "SUCCESS\r\n" + numPackets + "\r\n";
-                        byte[] sendRes = message.getBytes();
-                        sendPacket = new DatagramPacket(sendRes, sendRes.length, callerIPAddress, callerPort);
-                        udpSocket.send(sendPacket);
-
-                        byte[] seqImgBytes = createSeqArray(imgBytes, n);
-                        ByteArrayInputStream img_bais = new ByteArrayInputStream(seqImgBytes);
-
-                        int packetSeq;
-                        boolean resend_flag = false;
-                        byte[] imgSeqBuf = new byte[BUFFER_SIZE + 4];
-                        for (int i = 0; i < numPackets; i++){
-                            packetSeq = i + 1;
-                            // ------------- Send a sequenced packet to the UDP server ------------- //
-                            // Attempt to resend a packet that was not acknowledged
-                            if (resend_flag)
-                                udpSocket.send(sendPacket);
-
-                            // Attempt to send current sequenced packet
-                            else {
-                                int len = img_bais.read(imgSeqBuf);
-                                sendPacket = new DatagramPacket(imgSeqBuf, len, callerIPAddress, callerPort);
-                                udpSocket.send(sendPacket);
-                            }
-
-                            // check for response from the UDP server for acknowledgement of packets
-                            byte[] ackBytes = new byte[4];
-                            DatagramPacket ackPckt = new DatagramPacket(ackBytes, 4, callerIPAddress, callerPort);
-                            udpSocket.receive(ackPckt);
-
-                            int packetSeqAck = ByteBuffer.wrap(ackPckt.getData()).getInt();
-                            if (packetSeqAck == packetSeq && resend_flag)
-                                resend_flag = false;
-
-                            else if (packetSeqAck != packetSeq && !resend_flag) {
-                                resend_flag = true;
-                                i--;
-                            }
-
-                            else if (packetSeqAck != packetSeq)
-                                i--;
-                        }
+        @Override
+        void send(ByteBuffer frame) throws IOException {
+            channel.send(frame, key.address);
+        }
 
-                    } catch (IOException ioe) {
-                        System.err.println(ioe.getMessage());
-                        byte[] sendRes = "FAILURE\r\n".getBytes();
-                        sendPacket = new DatagramPacket(sendRes, sendRes.length,
-                                callerIPAddress, callerPort);
-                        udpSocket.send(sendPacket);
+        @Override
+        InetAddress peer() {
+            return key.address.getAddress();
+        }
+
+        @Override
+        void sendText(byte type, String text) throws IOException {
+            if (type == REPLY)
+                lastReply = text;
+            super.sendText(type, text);
+        }
+
+        @Override
+        ByteBuffer receive(long timeoutMs) throws IOException {
+            if (current != null)
+                release(current);
+            current = null;
+            try {
+                long deadline = System.nanoTime() + timeoutMs * 1_000_000;
+                while (!closed) {
+                    ByteBuffer frame = inbox.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (frame == null)
+                        return null;
+                    // A repeated request means our reply to it was lost
+                    if (type(frame) == REQUEST && lastReply != null) {
+                        release(frame);
+                        super.sendText(REPLY, lastReply);
+                        continue;
                     }
-                } else {
-                    byte[] sendRes = "FAILURE\r\n".getBytes();
-                    sendPacket = new DatagramPacket(sendRes, sendRes.length,
-                            callerIPAddress, callerPort);
-                    udpSocket.send(sendPacket);
+                    current = frame;
+                    return frame.position(HEADER_BYTES);
                 }
+                return null;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
             }
-        } catch (IOException e) {
-            System.err.println("Socket error: " + e.getMessage());
         }
-    }
 
-    private byte[] createSeqArray(byte[] totalbytes, int n) throws IOException {
-        int seqNumSize = 4;
-        int chunks = n / BUFFER_SIZE;
-        int last_byts = n % BUFFER_SIZE;
-        if (last_byts != 0)
-            chunks++;
+        @Override
+        public void run() {
+            synchronized (this) {
+                started = true;
+            }
+            try {
+                serve();
+            }
+            catch (IOException e) {
+                System.err.println("Session error: " + e.getMessage());
+            }
+            finally {
+                sessions.remove(key, this);
+                finish();
+            }
+        }
 
-        ByteArrayInputStream bhg = new ByteArrayInputStream(totalbytes);
-        ByteArrayOutputStream bsd = new ByteArrayOutputStream();
+        private void serve() throws IOException {
+            // ------------- GET THE HEADER DATA FROM THE SERVER ------------- //
+            BufferedReader br = new BufferedReader(new StringReader(text(receive(0))));
+
+            // File name
+            String fname = br.readLine();
+            // Request: POST/GET
+            String rqst = br.readLine();
+            Metrics.get().count(Metrics.series("relay_sessions_total", "request",
+                    Metrics.oneOf(rqst, "POST", "GET", "PING")));
+            // ----------------- HEADER DATA HAS BEEN PROCESSED ----------------- //
+
+            if (rqst == null) {
+                sendText(REPLY, "FAILURE\r\n");
+            }
+
+            else if (rqst.startsWith("POST")) {
+                long size;
+                int chunkSize;
+                long offset;
+                long length;
+                int blockBytes;
+                String uploadId;
+                byte[][] hashes;
+                try {
+                    // File size, and the chunk size the sender would like to use
+                    size = field(br.readLine(), 0, MAX_FILE_BYTES);
+                    chunkSize = (int) Math.min(field(br.readLine(), 1, Integer.MAX_VALUE), MAX_CHUNK_SIZE);
+                    // A stripe of a larger upload names its byte range; a whole upload does not
+                    String line = br.readLine();
+                    offset = line == null ? 0 : field(line, 0, size);
+                    length = line == null ? size : field(br.readLine(), 0, size - offset);
+                    // Then the block size, the upload the stripe belongs to and the hash of each
+                    // of its blocks; without them every block is sent and hashed here
+                    line = br.readLine();
+                    blockBytes = line == null ? ChunkStore.DEFAULT_BLOCK_BYTES
+                            : (int) field(line, 1, ChunkStore.MAX_BLOCK_BYTES);
+                    uploadId = line == null ? key.session + "@" + key.address : br.readLine();
+                    if (offset % blockBytes != 0)
+                        throw new IllegalArgumentException("Stripe at " + offset + " is not on a block boundary");
+                    if ((size + blockBytes - 1) / blockBytes > MAX_BLOCKS)
+                        throw new IllegalArgumentException(size + " bytes is over " + MAX_BLOCKS + " blocks of " + blockBytes);
+                    int blocks = ChunkStore.blocks(length, blockBytes);
+                    hashes = new byte[blocks][];
+                    for (int i = 0; i < blocks && (line = br.readLine()) != null; i++)
+                        hashes[i] = ChunkStore.unhex(line);
+                }
+                catch (RuntimeException e) {
+                    System.err.println("Malformed POST of " + fname + ": " + e.getMessage());
+                    sendText(REPLY, "FAILURE\r\n");
+                    return;
+                }
+                int blocks = hashes.length;
+
+                // Only the blocks we do not have yet are sent, one after the other
+                StringBuilder missing = new StringBuilder();
+                boolean[] wanted = new boolean[blocks];
+                long packed = 0;
+                for (int i = 0; i < blocks; i++) {
+                    if (hashes[i] == null || !store.has(hashes[i])) {
+                        wanted[i] = true;
+                        missing.append(missing.length() == 0 ? "" : ",").append(i);
+                        packed += Math.min(blockBytes, length - (long) i * blockBytes);
+                    }
+                }
+                int numPackets = (int) Math.ceil(packed / (double) chunkSize);
+
+                // ---------- NOW RECEIVE THE PACKETS THROUGH THE SLIDING WINDOW ---------- //
+                ReliableReceiver receiver = new ReliableReceiver(this);
+                try (FileChannel staging = FileChannel.open(Files.createTempFile(dir, ".incoming-", ".tmp"),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+                    ChunkStore.Upload upload = store.begin(fname, uploadId, size, blockBytes);
+                    // Each new block goes into the store as soon as all of it is in, so the
+                    // ones that made it before a failure are not asked for again on a retry
+                    StagedBlocks staged = new StagedBlocks(staging, wanted, hashes, length, blockBytes);
+                    receiver.onProgress(staged::advance);
+                    // Last, that we inflate DATA_DEFLATED chunks and rebuild from PARITY frames
+                    // should the sender want to use them
+                    sendText(REPLY, "READY\r\n" + chunkSize + "\r\n" + missing + "\r\ndeflate fec\r\n");
+                    receiver.receive(numPackets, chunkSize, staging);
+                    staged.finish(fname, packed);
+
+                    // The blocks we had are only referenced
+                    int first = (int) (offset / blockBytes);
+                    for (int i = 0; i < blocks; i++)
+                        upload.set(first + i, hashes[i]);
+                    upload.finish();
+                    sendText(REPLY, "SUCCESS\r\n");
+
+                } catch (IOException | RuntimeException e) {
+                    System.err.println(e.getMessage());
+                    sendText(REPLY, "FAILURE\r\n");
+                }
+            }
 
-        byte[] chunkBuf = new byte[BUFFER_SIZE];
-        for (int i = 0; i < chunks; i++) {
-            int seqNum = i + 1;
-            byte[] seqNumBytes = ByteBuffer.allocate(seqNumSize).putInt(seqNum).array();
-            bsd.write(seqNumBytes);
+            else if (rqst.startsWith("GET")) {
+                ChunkStore.Manifest manifest = store.manifest(fname);
+                if (manifest != null) {
+                    try {
+                        // Largest chunk the front end can take without fragmenting
+                        int chunkSize = (int) Math.min(field(br.readLine(), 1, Integer.MAX_VALUE), MAX_CHUNK_SIZE);
+                        // Optionally just one stripe: up to length bytes from offset on
+                        String line = br.readLine();
+                        long size = manifest.size;
+                        long offset = line == null ? 0 : Math.min(field(line, 0, Long.MAX_VALUE), size);
+                        long length = line == null ? size
+                                : Math.min(field(br.readLine(), 0, Long.MAX_VALUE), size - offset);
+                        ReliableSender sender = new ReliableSender(this, store.reader(manifest), offset, length, chunkSize);
+                        // After the range, the front end may list what it takes besides DATA:
+                        // "deflate" for DATA_DEFLATED chunks, "fec=N/K" for K PARITY frames per N chunks
+                        String options = line == null ? null : br.readLine();
+                        for (String option : options == null ? new String[0] : options.split(" ")) {
+                            if (option.equals("deflate"))
+                                sender.deflateChunks();
+                            else if (option.startsWith("fec=") && option.indexOf('/') > 4)
+                                sender.parity(Integer.parseInt(option.substring(4, option.indexOf('/'))),
+                                        Integer.parseInt(option.substring(option.indexOf('/') + 1)));
+                        }
+                        int numPackets = sender.numPackets();
+                        // The size is always the whole file's, so the front end can plan the other stripes
+                        sendText(REPLY, "SUCCESS\r\n" + numPackets + "\r\n" + chunkSize + "\r\n"
+                                + size + "\r\n");
 
-            int len = bhg.read(chunkBuf);
+                        // ------------- Stream the file through the sliding window ------------- //
+                        sender.send();
 
-            if (len < BUFFER_SIZE){
-                byte[] smaller_buf = new byte[len];
-                System.arraycopy(chunkBuf, 0, smaller_buf, 0, len);
-                bsd.write(smaller_buf);
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println(e.getMessage());
+                        sendText(REPLY, "FAILURE\r\n");
+                    }
+                } else {
+                    sendText(REPLY, "FAILURE\r\n");
+                }
             }
-            else {
-                bsd.write(chunkBuf);
+
+            // Health check from a front end
+            else if (rqst.startsWith("PING")) {
+                sendText(REPLY, "PONG\r\n");
             }
         }
-        return bsd.toByteArray();
     }
 }
@@ -0,0 +1,93 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BodySpoolerTest {
+    @TempDir
+    Path dir;
+
+    private HttpRequest post(boolean chunked, long contentLength) {
+        HttpRequest req = new HttpRequest();
+        req.mode = "POST";
+        req.filename = dir.resolve("body.txt").toString();
+        req.chunked = chunked;
+        req.contentLength = contentLength;
+        return req;
+    }
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    void contentLengthLeavesThePipelinedRequest() throws IOException {
+        BodySpooler spool = BodySpooler.forRequest(post(false, 10));
+        assertFalse(spool.consume(bytes("hello")));
+        ByteBuffer rest = bytes("worldGET /next");
+        assertTrue(spool.consume(rest));
+        assertEquals("GET /next", StandardCharsets.ISO_8859_1.decode(rest).toString());
+        assertEquals("helloworld", read(spool.finish()));
+    }
+
+    @Test
+    void chunkedBodyOneByteAtATime() throws IOException {
+        BodySpooler spool = BodySpooler.forRequest(post(true, -1));
+        String body = "5;ext=1\r\nhello\r\nA\r\n0123456789\r\n0\r\nTrailer: x\r\n\r\n";
+        boolean done = false;
+        for (int i = 0; i < body.length(); i++) {
+            assertFalse(done);
+            done = spool.consume(bytes(body.substring(i, i + 1)));
+        }
+        assertTrue(done);
+        assertEquals("hello0123456789", read(spool.finish()));
+    }
+
+    @Test
+    void malformedChunkSizesAreRefused() throws IOException {
+        for (String size : new String[] {"-1", "+a", "0x10", "zz", "", "1000000000000000"}) {
+            BodySpooler spool = BodySpooler.forRequest(post(true, -1));
+            assertThrows(BodySpooler.MalformedException.class, () -> spool.consume(bytes(size + "\r\n")), size);
+            spool.abort();
+        }
+    }
+
+    @Test
+    void chunkWithoutItsCrlfIsRefused() throws IOException {
+        BodySpooler spool = BodySpooler.forRequest(post(true, -1));
+        assertThrows(BodySpooler.MalformedException.class, () -> spool.consume(bytes("2\r\nabc\r\n")));
+        spool.abort();
+    }
+
+    @Test
+    void abortDeletesTheTempFile() throws IOException {
+        BodySpooler spool = BodySpooler.forRequest(post(false, 10));
+        spool.consume(bytes("half"));
+        spool.abort();
+        try (var files = Files.list(dir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void noSpoolerWithoutAFramedBody() throws IOException {
+        assertNull(BodySpooler.forRequest(post(false, -1)));
+        HttpRequest get = post(false, 10);
+        get.mode = "GET";
+        assertNull(BodySpooler.forRequest(get));
+    }
+}
@@ -0,0 +1,51 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GroupCommitTest {
+    private final GroupCommit commits = new GroupCommit("test");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void commitMovesTheFileIntoPlace() throws IOException {
+        Path tmp = Files.write(dir.resolve(".a.tmp"), new byte[] {1, 2, 3});
+        Path to = Files.write(dir.resolve("a"), new byte[] {9});
+        commits.commit(List.of(tmp), tmp, to, 3);
+        assertFalse(Files.exists(tmp));
+        assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(to));
+    }
+
+    @Test
+    void missingTempFileFailsOnlyItsCommit() throws IOException {
+        assertThrows(NoSuchFileException.class,
+                () -> commits.commit(List.of(), dir.resolve(".gone.tmp"), dir.resolve("gone"), 0));
+        Path tmp = Files.write(dir.resolve(".b.tmp"), new byte[] {4});
+        commits.commit(List.of(tmp), tmp, dir.resolve("b"), 1);
+        assertTrue(Files.exists(dir.resolve("b")));
+    }
+
+    // An unexpected failure fails its batch, and the writer carries on
+    @Test
+    void writerSurvivesARuntimeFailure() throws IOException {
+        Path tmp = Files.write(dir.resolve(".c.tmp"), new byte[] {5});
+        IOException e = assertThrows(IOException.class,
+                () -> commits.commit(Arrays.asList((Path) null), tmp, dir.resolve("c"), 1));
+        assertTrue(e.getCause() instanceof NullPointerException, e.toString());
+
+        commits.commit(List.of(tmp), tmp, dir.resolve("c"), 1);
+        assertArrayEquals(new byte[] {5}, Files.readAllBytes(dir.resolve("c")));
+    }
+}
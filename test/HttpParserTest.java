@@ -0,0 +1,93 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class HttpParserTest {
+    private final HttpParser parser = new HttpParser();
+    private final ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+
+    // Feeds text into the read buffer as a socket read would
+    private HttpRequest feed(String text) throws IOException {
+        in.put(text.getBytes(StandardCharsets.ISO_8859_1));
+        return parser.parse(in);
+    }
+
+    @Test
+    void headSplitOverReads() throws IOException {
+        assertNull(feed("POST /img/cat.png HT"));
+        assertNull(feed("TP/1.1\r\nContent-Type: IMAGE/PNG; q=1\r\n"));
+        assertNull(feed("content-length:  42 \r\nRange: bytes=0-9\r\n"));
+        HttpRequest req = feed("\r\n");
+
+        assertNotNull(req);
+        assertEquals("POST", req.mode);
+        assertEquals("img/cat.png", req.filename);
+        assertEquals("image/png", req.ctype);
+        assertTrue(req.imgFlag);
+        assertEquals(42, req.contentLength);
+        assertEquals("bytes=0-9", req.range);
+        assertTrue(req.keepAlive);
+        assertFalse(req.badPath);
+        assertEquals(0, in.position());
+    }
+
+    @Test
+    void pipelinedRequestStaysInTheBuffer() throws IOException {
+        HttpRequest first = feed("GET /a.txt HTTP/1.1\r\n\r\nGET /b.txt HTTP/1.1\r\n\r\n");
+        assertEquals("a.txt", first.filename);
+        HttpRequest second = parser.parse(in);
+        assertEquals("b.txt", second.filename);
+        assertEquals(0, in.position());
+    }
+
+    @Test
+    void keepAliveFollowsVersionAndConnection() throws IOException {
+        assertFalse(feed("GET /a HTTP/1.0\r\n\r\n").keepAlive);
+        assertTrue(feed("GET /a HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n").keepAlive);
+        assertFalse(feed("GET /a HTTP/1.1\r\nConnection: close\r\n\r\n").keepAlive);
+    }
+
+    @Test
+    void chunkedAndExpectContinue() throws IOException {
+        HttpRequest req = feed("PUT /a HTTP/1.1\r\nTransfer-Encoding: chunked\r\nExpect: 100-continue\r\n"
+                + "Content-Range: bytes 0-9/10\r\n\r\n");
+        assertTrue(req.chunked);
+        assertTrue(req.expectContinue);
+        assertEquals("bytes 0-9/10", req.contentRange);
+        assertTrue(req.hasBody());
+    }
+
+    @Test
+    void badContentLengthIsRefused() {
+        assertThrows(IOException.class, () -> feed("POST /a HTTP/1.1\r\nContent-Length: -1\r\n\r\n"));
+    }
+
+    @Test
+    void malformedRequestLineIsRefused() {
+        assertThrows(IOException.class, () -> feed("GET\r\n\r\n"));
+    }
+
+    @Test
+    void pathsNoFileCanHaveAreFlagged() throws IOException {
+        assertTrue(feed("POST /a\0b HTTP/1.1\r\n\r\n").badPath);
+        assertTrue(feed("GET /a\u0001b HTTP/1.1\r\n\r\n").badPath);
+        assertFalse(feed("GET /a%00b HTTP/1.1\r\n\r\n").badPath);
+    }
+
+    @Test
+    void oversizedHeadIsRefused() {
+        StringBuilder head = new StringBuilder("GET /a HTTP/1.1\r\n");
+        while (head.length() < 9000)
+            head.append("X-Filler: 0123456789012345678901234567890123456789\r\n");
+        assertThrows(IOException.class, () -> feed(head.toString()));
+    }
+}
@@ -0,0 +1,88 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ImageCacheTest {
+    @TempDir
+    Path dir;
+
+    private void put(ImageCache cache, String name, int size) throws IOException {
+        put(cache, name, size, cache.generation());
+    }
+
+    private void put(ImageCache cache, String name, int size, long generation) throws IOException {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) name.charAt(0));
+        Path file = dir.resolve(name);
+        Files.write(file, bytes);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            cache.put(name, channel, size, generation);
+        }
+    }
+
+    @Test
+    void leastRecentlyUsedGoesFirst() throws IOException {
+        ImageCache cache = new ImageCache(300);
+        put(cache, "a", 100);
+        put(cache, "b", 100);
+        put(cache, "c", 100);
+        // Reading a makes b the oldest
+        assertNotNull(cache.get("a"));
+        put(cache, "d", 150);
+
+        assertNull(cache.get("b"));
+        assertNull(cache.get("c"));
+        assertNotNull(cache.get("a"));
+        ByteBuffer d = cache.get("d");
+        assertEquals(150, d.remaining());
+        assertEquals('d', d.get(0));
+        assertEquals(250, cache.bytes());
+        assertEquals(2, cache.evictions());
+    }
+
+    @Test
+    void replacingAnImageCountsItsBytesOnce() throws IOException {
+        ImageCache cache = new ImageCache(300);
+        put(cache, "a", 100);
+        put(cache, "a", 200);
+        assertEquals(200, cache.bytes());
+        assertEquals(0, cache.evictions());
+    }
+
+    @Test
+    void imagesLargerThanTheCacheAreNotKept() throws IOException {
+        ImageCache cache = new ImageCache(300);
+        put(cache, "a", 100);
+        put(cache, "b", 301);
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.hits());
+    }
+
+    // A fetch that started before an invalidation may have read the old image
+    @Test
+    void fetchOverlappingAnInvalidationIsNotCached() throws IOException {
+        ImageCache cache = new ImageCache(300);
+        put(cache, "a", 100);
+        long generation = cache.generation();
+        cache.invalidate("a");
+        put(cache, "a", 100, generation);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.bytes());
+
+        put(cache, "a", 100);
+        assertNotNull(cache.get("a"));
+    }
+}
@@ -0,0 +1,105 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ReliableReceiverTest {
+    private static final int CHUNK = 1000;
+
+    @TempDir
+    Path dir;
+
+    // One chunk lost from each of three parity classes, the short last chunk among
+    // them, comes back from the parity alone: the receiver never asks for a resend
+    @Test
+    void lostChunksAreRebuiltFromParity() throws IOException {
+        byte[] bytes = new byte[19 * CHUNK + 337];
+        new Random(2).nextBytes(bytes);
+        Path source = dir.resolve("source");
+        Files.write(source, bytes);
+
+        Recorder wire = new Recorder(Set.of(3, 6, 20));
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            ReliableSender sender = new ReliableSender(wire, in, CHUNK);
+            sender.parity(8, 2);
+            sender.send();
+        }
+
+        long rebuilt = rebuilt();
+        Path target = dir.resolve("target");
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+                StandardOpenOption.READ)) {
+            new ReliableReceiver(new Replay(wire.frames)).receive(20, CHUNK, out);
+        }
+        assertArrayEquals(bytes, Files.readAllBytes(target));
+        assertEquals(3, rebuilt() - rebuilt);
+    }
+
+    private static long rebuilt() {
+        return Metrics.get().getCounters().getOrDefault("relay_chunks_rebuilt_total", 0L);
+    }
+
+    // What the sender put on the wire, less the DATA frames of the chunks in lost;
+    // acknowledges everything sent so far
+    private static class Recorder extends RelayChannel {
+        final Queue<ByteBuffer> frames = new ArrayDeque<>();
+        final Set<Integer> lost;
+        int highest = 0;
+
+        Recorder(Set<Integer> lost) {
+            super(0);
+            this.lost = lost;
+        }
+
+        @Override
+        void send(ByteBuffer frame) {
+            if (type(frame) == DATA) {
+                int seq = frame.getInt(HEADER_BYTES);
+                highest = Math.max(highest, seq);
+                if (lost.contains(seq))
+                    return;
+            }
+            frames.add(ByteBuffer.allocate(frame.remaining()).put(frame.duplicate()).flip());
+        }
+
+        @Override
+        ByteBuffer receive(long timeoutMs) {
+            ByteBuffer ack = startFrame(ByteBuffer.allocate(HEADER_BYTES + ReliableSender.ACK_BYTES), ACK)
+                    .putInt(highest).putInt(highest).putLong(0);
+            ack.flip();
+            return ack.position(HEADER_BYTES);
+        }
+    }
+
+    // Hands the recorded frames to the receiver in order, then goes quiet
+    private static class Replay extends RelayChannel {
+        final Queue<ByteBuffer> frames;
+
+        Replay(Queue<ByteBuffer> frames) {
+            super(0);
+            this.frames = frames;
+        }
+
+        @Override
+        void send(ByteBuffer frame) {
+        }
+
+        @Override
+        ByteBuffer receive(long timeoutMs) {
+            ByteBuffer frame = frames.poll();
+            return frame == null ? null : frame.position(HEADER_BYTES);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ReliableSenderTest {
+    private static final int CHUNK = 1000;
+
+    @TempDir
+    Path dir;
+
+    // The node replays READY for a repeat of the request that crossed the first chunks
+    @Test
+    void replayedReadyIsNotTakenForTheStatus() throws IOException {
+        Path file = dir.resolve("image");
+        byte[] bytes = new byte[20 * CHUNK];
+        new Random(1).nextBytes(bytes);
+        Files.write(file, bytes);
+
+        Peer peer = new Peer();
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            ReliableSender sender = new ReliableSender(peer, source, CHUNK);
+            peer.replies.add("READY\r\n" + CHUNK + "\r\n");
+            assertNull(sender.send());
+
+            peer.replies.add("READY\r\n" + CHUNK + "\r\n");
+            peer.replies.add("SUCCESS\r\n");
+            assertEquals("SUCCESS", sender.awaitStatus());
+        }
+        assertEquals(20, peer.highest);
+    }
+
+    // Acknowledges every chunk as it is sent, after handing out any queued replies
+    private static class Peer extends RelayChannel {
+        final Queue<String> replies = new ArrayDeque<>();
+        int highest = 0;
+
+        Peer() {
+            super(0);
+        }
+
+        @Override
+        void send(ByteBuffer frame) {
+            if (type(frame) == DATA)
+                highest = Math.max(highest, frame.getInt(HEADER_BYTES));
+        }
+
+        @Override
+        ByteBuffer receive(long timeoutMs) {
+            ByteBuffer frame;
+            String reply = replies.poll();
+            if (reply != null) {
+                byte[] text = reply.getBytes(StandardCharsets.UTF_8);
+                frame = startFrame(ByteBuffer.allocate(HEADER_BYTES + text.length), REPLY).put(text);
+            }
+            else
+                frame = startFrame(ByteBuffer.allocate(HEADER_BYTES + ReliableSender.ACK_BYTES), ACK)
+                        .putInt(highest).putInt(highest).putLong(0);
+            frame.flip();
+            return frame.position(HEADER_BYTES);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ResumableUploadsTest {
+    private static final int BLOCK = 256 * 1024;
+    private static final Path DIR;
+
+    // ResumableUploads reads its directory once, when the class loads
+    static {
+        try {
+            DIR = Files.createTempDirectory("uploads-");
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        System.setProperty("http.uploadDir", DIR.toString());
+    }
+
+    private final GroupCommit commits = new GroupCommit("test");
+
+    @TempDir
+    Path bodies;
+
+    @AfterAll
+    static void deleteDir() throws IOException {
+        try (Stream<Path> files = Files.walk(DIR)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(file);
+        }
+    }
+
+    @Test
+    void contentRanges() {
+        assertArrayEquals(new long[] {0, BLOCK - 1, 1000_000}, ResumableUploads.parse("bytes 0-" + (BLOCK - 1) + "/1000000"));
+        assertArrayEquals(new long[] {BLOCK, 999_999, 1000_000}, ResumableUploads.parse("bytes " + BLOCK + "-999999/1000000"));
+        assertArrayEquals(new long[] {-1, -1, 1000_000}, ResumableUploads.parse("bytes */1000000"));
+        // Off a block boundary, past the end, backwards, or of no size
+        assertNull(ResumableUploads.parse("bytes 1-" + BLOCK + "/1000000"));
+        assertNull(ResumableUploads.parse("bytes 0-1000/1000000"));
+        assertNull(ResumableUploads.parse("bytes 0-1000000/1000000"));
+        assertNull(ResumableUploads.parse("bytes " + BLOCK + "-0/1000000"));
+        assertNull(ResumableUploads.parse("bytes */0"));
+        assertNull(ResumableUploads.parse("bytes 0-9"));
+        assertNull(ResumableUploads.parse("items 0-9/10"));
+        assertNull(ResumableUploads.parse(null));
+    }
+
+    @Test
+    void totalsOverTheLimitAreRefused() {
+        assertNotNull(ResumableUploads.parse("bytes */" + (4L << 30)));
+        assertNull(ResumableUploads.parse("bytes */" + ((4L << 30) + 1)));
+        assertNull(ResumableUploads.parse("bytes */" + Long.MAX_VALUE));
+    }
+
+    @Test
+    void piecesInAnyOrderSurviveARestart() throws IOException {
+        byte[] file = new byte[2 * BLOCK + 1000];
+        new Random(3).nextBytes(file);
+        long total = file.length;
+
+        ResumableUploads uploads = new ResumableUploads(commits);
+        ResumableUploads.Progress p = uploads.write("f.png", range(BLOCK, 2 * BLOCK - 1, total), piece(file, BLOCK, 2 * BLOCK));
+        assertEquals(0, p.prefix);
+        assertNull(p.complete);
+
+        // A restart keeps what is in; asking with an empty body says how far it got
+        uploads = new ResumableUploads(commits);
+        p = uploads.write("f.png", range(0, BLOCK - 1, total), piece(file, 0, BLOCK));
+        assertEquals(2 * BLOCK, p.prefix);
+        uploads = new ResumableUploads(commits);
+        assertEquals(2 * BLOCK, uploads.write("f.png", new long[] {-1, -1, total}, piece(file, 0, 0)).prefix);
+
+        p = uploads.write("f.png", range(2 * BLOCK, total - 1, total), piece(file, 2 * BLOCK, file.length));
+        assertEquals(total, p.prefix);
+        assertArrayEquals(file, Files.readAllBytes(p.complete));
+
+        uploads.finish("f.png", total);
+        assertEquals(0, uploads.write("f.png", new long[] {-1, -1, total}, piece(file, 0, 0)).prefix);
+    }
+
+    @Test
+    void uploadsOfOtherSizesUnderOneNameStayApart() throws IOException {
+        byte[] a = new byte[BLOCK + 10];
+        byte[] b = new byte[BLOCK + 20];
+        Arrays.fill(a, (byte) 'a');
+        Arrays.fill(b, (byte) 'b');
+        ResumableUploads uploads = new ResumableUploads(commits);
+
+        uploads.write("g.png", range(0, BLOCK - 1, a.length), piece(a, 0, BLOCK));
+        uploads.write("g.png", range(0, BLOCK - 1, b.length), piece(b, 0, BLOCK));
+        ResumableUploads.Progress pa = uploads.write("g.png", range(BLOCK, a.length - 1, a.length), piece(a, BLOCK, a.length));
+        ResumableUploads.Progress pb = uploads.write("g.png", range(BLOCK, b.length - 1, b.length), piece(b, BLOCK, b.length));
+        assertArrayEquals(a, Files.readAllBytes(pa.complete));
+        assertArrayEquals(b, Files.readAllBytes(pb.complete));
+        uploads.finish("g.png", a.length);
+        uploads.finish("g.png", b.length);
+    }
+
+    private static long[] range(long first, long last, long total) {
+        return new long[] {first, last, total};
+    }
+
+    // The bytes [from, to) of file in a temp file, as a request body would be spooled
+    private Path piece(byte[] file, int from, int to) throws IOException {
+        Path body = Files.createTempFile(bodies, "piece-", ".tmp");
+        Files.write(body, Arrays.copyOfRange(file, from, to));
+        return body;
+    }
+}
@@ -0,0 +1,211 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+// Three UDPServer nodes and a TCPServer keeping two replicas of every image, each in
+// its own JVM so a node can be killed and brought back as it would be in production.
+// Every port is a free one picked at the start, and every process runs in a temp
+// directory that goes at the end, so runs do not collide or leave files behind.
+class StorageClusterFailoverTest {
+    private static final long WAIT_MS = 15_000;
+
+    private static String[] NODES;
+    private static int port;
+    private static Path dir;
+    private static String classes;
+    private static Process tcp;
+    private static final Map<String, Process> nodes = new HashMap<>();
+    // The same ring TCPServer builds, to know which nodes an image goes to
+    private static StorageCluster ring;
+    private static final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+    @BeforeAll
+    static void start() throws Exception {
+        dir = Files.createTempDirectory("cluster-");
+        classes = Paths.get(UDPServer.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        NODES = new String[3];
+        for (int i = 0; i < NODES.length; i++) {
+            try (DatagramSocket s = new DatagramSocket(0)) {
+                NODES[i] = "127.0.0.1:" + s.getLocalPort();
+            }
+        }
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        ring = new StorageCluster(NODES);
+        for (String node : NODES)
+            startNode(node);
+
+        tcp = java(dir.resolve("tcp.log"), "-Dtcp.port=" + port, "-Drelay.replicas=2", "-Dring.healthMs=200",
+                "-Dcache.maxBytes=0", "TCPServer", NODES[0], NODES[1], NODES[2]);
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (true) {
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress("127.0.0.1", port), 200);
+                break;
+            }
+            catch (IOException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw new IllegalStateException("TCPServer did not come up on port " + port);
+                Thread.sleep(50);
+            }
+        }
+        for (String node : NODES)
+            awaitNode(node, true);
+    }
+
+    @AfterAll
+    static void stop() throws Exception {
+        List<Process> all = new ArrayList<>(nodes.values());
+        if (tcp != null)
+            all.add(tcp);
+        for (Process p : all)
+            p.destroyForcibly();
+        for (Process p : all)
+            p.waitFor();
+        if (dir != null) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                    Files.delete(file);
+            }
+        }
+    }
+
+    // Every test starts from all three nodes up
+    @AfterEach
+    void restoreNodes() throws Exception {
+        for (String node : NODES) {
+            if (!nodes.get(node).isAlive()) {
+                startNode(node);
+                awaitNode(node, true);
+            }
+        }
+    }
+
+    @Test
+    void readsAndWritesSurviveALostNode() throws Exception {
+        byte[] a = image(300_000);
+        assertEquals(201, post("failover-a.png", a));
+
+        String first = ring.preference("failover-a.png").get(0).toString();
+        killNode(first);
+        awaitNode(first, false);
+
+        // The other replica serves the image, and new ones go to the two nodes left
+        assertArrayEquals(a, get("failover-a.png").body());
+        byte[] b = image(300_000);
+        assertEquals(201, post("failover-b.png", b));
+        assertArrayEquals(b, get("failover-b.png").body());
+    }
+
+    @Test
+    void readsFallThroughToTheReplicaThatHasTheImage() throws Exception {
+        // Both preferred nodes miss the POST, which lands on the third alone
+        List<StorageCluster.Node> preference = ring.preference("failover-c.png");
+        String first = preference.get(0).toString();
+        String second = preference.get(1).toString();
+        killNode(first);
+        killNode(second);
+        awaitNode(first, false);
+        awaitNode(second, false);
+        byte[] c = image(300_000);
+        assertEquals(201, post("failover-c.png", c));
+
+        // Back up, they head the read order again without having the image
+        startNode(first);
+        startNode(second);
+        awaitNode(first, true);
+        awaitNode(second, true);
+        HttpResponse<byte[]> got = get("failover-c.png");
+        assertEquals(200, got.statusCode());
+        assertArrayEquals(c, got.body());
+    }
+
+    private static byte[] image(int size) {
+        byte[] bytes = new byte[size];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return bytes;
+    }
+
+    private static int post(String name, byte[] body) throws Exception {
+        HttpRequest req = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/" + name))
+                .header("Content-Type", "image/png")
+                .timeout(Duration.ofSeconds(30))
+                .POST(BodyPublishers.ofByteArray(body))
+                .build();
+        return client.send(req, BodyHandlers.discarding()).statusCode();
+    }
+
+    private static HttpResponse<byte[]> get(String name) throws Exception {
+        HttpRequest req = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/" + name))
+                .header("Content-Type", "image/png")
+                .timeout(Duration.ofSeconds(30))
+                .GET()
+                .build();
+        return client.send(req, BodyHandlers.ofByteArray());
+    }
+
+    private static void startNode(String node) throws IOException {
+        String port = node.substring(node.lastIndexOf(':') + 1);
+        Path store = Files.createDirectories(dir.resolve("node-" + port));
+        nodes.put(node, java(dir.resolve("node-" + port + ".log"), "UDPServer", port, store.toString()));
+    }
+
+    private static void killNode(String node) throws InterruptedException {
+        nodes.get(node).destroyForcibly().waitFor();
+    }
+
+    // Waits for TCPServer's health checks to see node as up (or down)
+    private static void awaitNode(String node, boolean up) throws Exception {
+        String line = Metrics.series("relay_node_up", "node", node) + " " + (up ? 1 : 0);
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            HttpRequest req = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/metrics"))
+                    .timeout(Duration.ofSeconds(5))
+                    .build();
+            if (client.send(req, BodyHandlers.ofString()).body().contains(line + "\n"))
+                return;
+            Thread.sleep(50);
+        }
+        throw new IllegalStateException("Node " + node + " not seen " + (up ? "up" : "down"));
+    }
+
+    private static Process java(Path log, String... args) throws IOException {
+        List<String> command = new ArrayList<>(List.of(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp", classes));
+        command.addAll(List.of(args));
+        // In dir, as the servers keep state (ResumableUploads' directory, say) in theirs
+        return new ProcessBuilder(command)
+                .directory(dir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+    }
+}
@@ -0,0 +1,32 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+class TCPServerTest {
+    @Test
+    void rangesAgainstTheFileSize() {
+        assertArrayEquals(new long[] {0, 9}, TCPServer.parseRange("bytes=0-9", 100));
+        assertArrayEquals(new long[] {90, 99}, TCPServer.parseRange("bytes=90-", 100));
+        assertArrayEquals(new long[] {90, 99}, TCPServer.parseRange("bytes=90-500", 100));
+        // Suffix ranges: the last N bytes, all of them when N is larger
+        assertArrayEquals(new long[] {95, 99}, TCPServer.parseRange("bytes=-5", 100));
+        assertArrayEquals(new long[] {0, 99}, TCPServer.parseRange("bytes=-500", 100));
+    }
+
+    @Test
+    void unsatisfiableRanges() {
+        assertArrayEquals(new long[] {-1, -1}, TCPServer.parseRange("bytes=100-", 100));
+        assertArrayEquals(new long[] {-1, -1}, TCPServer.parseRange("bytes=-0", 100));
+    }
+
+    @Test
+    void rangesServedWhole() {
+        assertNull(TCPServer.parseRange(null, 100));
+        assertNull(TCPServer.parseRange("items=0-9", 100));
+        assertNull(TCPServer.parseRange("bytes=0-1,5-6", 100));
+        assertNull(TCPServer.parseRange("bytes=9-3", 100));
+        assertNull(TCPServer.parseRange("bytes=a-b", 100));
+        assertNull(TCPServer.parseRange("bytes=5", 100));
+    }
+}